@@ -0,0 +1,89 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Frame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Connections} for benchmarks: every message goes to a sink that only counts bytes,
+ * and frames are written (file slices included) and released with {@link Frame#writeFully},
+ * as a blocking connection handler does.
+ * Remembers the opcode of the last reply and, for DATA, its size and block number, so a
+ * benchmark can play the client.
+ */
+public final class InMemoryConnections implements Connections<byte[]> {
+
+    private final WritableByteChannel sink = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (frameStart) {
+                remember(src, src.position(), n); // a frame's own bytes always come before its file slice
+                frameStart = false;
+            }
+            src.position(src.limit());
+            bytesSent += n;
+            return n;
+        }
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() {}
+    };
+
+    private boolean frameStart;
+    private long bytesSent;
+    private int lastOpcode;
+    private int lastDataSize;
+    private int lastBlock;
+
+    @Override
+    public void connect(int connectionId, ConnectionHandler<byte[]> handler) {
+    }
+
+    @Override
+    public boolean send(int connectionId, byte[] msg) {
+        if (msg.length >= 2 && msg[1] == 9) return true; // BCAST, sent from the dispatcher's threads
+        remember(ByteBuffer.wrap(msg), 0, msg.length);
+        bytesSent += msg.length;
+        return true;
+    }
+
+    @Override
+    public boolean sendFrame(int connectionId, Frame frame) {
+        frameStart = true;
+        try {
+            frame.writeFully(sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            frameStart = false; // a frame that only closes a file writes nothing
+        }
+        return true;
+    }
+
+    private void remember(ByteBuffer b, int off, int len) {
+        if (len < 2) return;
+        lastOpcode = u16(b, off);
+        if (lastOpcode == 3 && len >= 6) {
+            lastDataSize = u16(b, off + 2);
+            lastBlock = u16(b, off + 4);
+        }
+    }
+
+    private static int u16(ByteBuffer b, int i) {
+        return ((b.get(i) & 0xff) << 8) | (b.get(i + 1) & 0xff);
+    }
+
+    @Override
+    public void disconnect(int connectionId) {
+    }
+
+    public long bytesSent() { return bytesSent; }
+    public int lastOpcode() { return lastOpcode; }
+    public int lastDataSize() { return lastDataSize; }
+    public int lastBlock() { return lastBlock; }
+}
@@ -0,0 +1,58 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.echo.LineMessageEncoderDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** {@link LineMessageEncoderDecoder}: newline-terminated UTF-8 strings. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineCodecBenchmark {
+
+    @Param({"16", "256"})
+    public int length;
+
+    private LineMessageEncoderDecoder codec;
+    private String line;
+    private ByteBuffer encoded;
+    private ByteBuffer burst; // 32 lines in one read
+
+    @Setup
+    public void setup() {
+        codec = new LineMessageEncoderDecoder();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('a' + i % 26));
+        line = sb.toString();
+        byte[] one = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        encoded = ByteBuffer.wrap(one);
+        burst = ByteBuffer.allocate(one.length * 32);
+        for (int i = 0; i < 32; i++) burst.put(one);
+        burst.flip();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(line);
+    }
+
+    @Benchmark
+    public List<String> decode() {
+        encoded.rewind();
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32)
+    public List<String> decodeBurst() {
+        burst.rewind();
+        return codec.decode(burst);
+    }
+}
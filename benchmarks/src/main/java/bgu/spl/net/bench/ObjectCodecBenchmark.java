@@ -0,0 +1,50 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.rci.ObjectEncoderDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** {@link ObjectEncoderDecoder}: java serialization behind a length prefix. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectCodecBenchmark {
+
+    /** about the size of a newsfeed command */
+    static final class Message implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String channel;
+        final String text;
+        final long ts;
+        Message(String channel, String text, long ts) { this.channel = channel; this.text = text; this.ts = ts; }
+    }
+
+    private ObjectEncoderDecoder codec;
+    private Message message;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        codec = new ObjectEncoderDecoder();
+        message = new Message("sports", "Local team wins the cup after a 3-2 comeback in extra time", 1_700_000_000_000L);
+        encoded = ByteBuffer.wrap(codec.encode(message));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public List<Serializable> decode() {
+        encoded.rewind();
+        return codec.decode(encoded);
+    }
+}
@@ -0,0 +1,91 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** {@link TftpEncoderDecoder} decoding whole frames out of a read buffer, as the handlers call it. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TftpCodecBenchmark {
+
+    private TftpEncoderDecoder codec;
+    private ByteBuffer data512;
+    private ByteBuffer data8k;
+    private ByteBuffer ack;
+    private ByteBuffer ackBurst;  // 64 ACKs in one read, as a windowed client sends them
+    private ByteBuffer rrq;
+    private ByteBuffer rrqOptions;
+
+    @Setup
+    public void setup() {
+        codec = new TftpEncoderDecoder();
+        data512 = data(512);
+        data8k = data(8192);
+        ack = ByteBuffer.wrap(new byte[]{0, 4, 0, 42});
+        ackBurst = ByteBuffer.allocate(64 * 4);
+        for (int i = 0; i < 64; i++) ackBurst.putShort((short) 4).putShort((short) i);
+        ackBurst.flip();
+        rrq = ByteBuffer.wrap(concat(new byte[]{0, 1}, "holiday-photos-2024.zip\0"));
+        rrqOptions = ByteBuffer.wrap(concat(new byte[]{0, 1, 0},
+                "holiday-photos-2024.zip\0blksize\0" + 8192 + "\0windowsize\0" + 16 + "\0\0"));
+    }
+
+    private static ByteBuffer data(int size) {
+        ByteBuffer b = ByteBuffer.allocate(6 + size);
+        b.putShort((short) 3).putShort((short) size).putShort((short) 7);
+        for (int i = 0; i < size; i++) b.put((byte) i);
+        return b.flip();
+    }
+
+    private static byte[] concat(byte[] head, String tail) {
+        byte[] t = tail.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[head.length + t.length];
+        System.arraycopy(head, 0, out, 0, head.length);
+        System.arraycopy(t, 0, out, head.length, t.length);
+        return out;
+    }
+
+    private List<byte[]> decode(ByteBuffer in) {
+        in.rewind();
+        return codec.decode(in);
+    }
+
+    @Benchmark
+    public List<byte[]> decodeData512() { return decode(data512); }
+
+    @Benchmark
+    public List<byte[]> decodeData8k() { return decode(data8k); }
+
+    @Benchmark
+    public List<byte[]> decodeAck() { return decode(ack); }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public List<byte[]> decodeAckBurst() { return decode(ackBurst); }
+
+    @Benchmark
+    public List<byte[]> decodeRrq() { return decode(rrq); }
+
+    @Benchmark
+    public List<byte[]> decodeRrqWithOptions() { return decode(rrqOptions); }
+
+    /** the slow path every decoder inherits: one byte at a time */
+    @Benchmark
+    public byte[] decodeData512ByteByByte() {
+        byte[] frame = null;
+        for (int i = 0; i < data512.limit(); i++) {
+            byte[] f = codec.decodeNextByte(data512.get(i));
+            if (f != null) frame = f;
+        }
+        return frame;
+    }
+}
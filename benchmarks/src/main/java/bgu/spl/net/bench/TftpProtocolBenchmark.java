@@ -0,0 +1,150 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.TftpProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Whole RRQ, WRQ and DIRQ exchanges through {@link TftpProtocol}, with the benchmark playing
+ * the client against {@link InMemoryConnections}. Files are real files in a temp folder
+ * ({@code -Dstorage.base-dir} if set), so WRQ includes the fsync and the removal of each upload.
+ * One op is one complete transfer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TftpProtocolBenchmark {
+
+    static final int FILE_SIZE = 256 * 1024;
+    static final int DIR_ENTRIES = 300;
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    /** block size and window of a transfer; 512 and 1 mean a request without options */
+    @State(Scope.Thread)
+    public static class Transfer {
+        @Param({"512", "8192"})
+        public int blksize;
+
+        @Param({"1", "8"})
+        public int windowsize;
+
+        byte[] rrq, wrq;
+        byte[] fullBlock, lastBlock; // DATA frames, block number patched in place
+
+        @Setup
+        public void setup() {
+            rrq = request(1, "read.bin");
+            wrq = request(2, "upload.bin");
+            fullBlock = new byte[6 + blksize];
+            lastBlock = new byte[6 + FILE_SIZE % blksize];
+            header(fullBlock, blksize);
+            header(lastBlock, FILE_SIZE % blksize);
+        }
+
+        private byte[] request(int op, String name) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0);
+            out.write(op);
+            String body = (blksize == 512 && windowsize == 1)
+                    ? name + "\0"
+                    : "\0" + name + "\0blksize\0" + blksize + "\0windowsize\0" + windowsize + "\0\0";
+            byte[] b = body.getBytes(StandardCharsets.UTF_8);
+            out.write(b, 0, b.length);
+            return out.toByteArray();
+        }
+
+        private static void header(byte[] frame, int size) {
+            frame[1] = 3;
+            frame[2] = (byte) (size >> 8);
+            frame[3] = (byte) size;
+        }
+    }
+
+    private TftpProtocol protocol;
+    private InMemoryConnections conns;
+    private Path userDir;
+    private final byte[] ack = {0, 4, 0, 0};
+    private final byte[] dirq = {0, 6};
+
+    @Setup
+    public void setup() throws IOException {
+        // must be set before TftpProtocol is loaded, it reads the folder once
+        String base = System.getProperty("storage.base-dir");
+        if (base == null) {
+            base = Files.createTempDirectory("tftp-bench").toString();
+            System.setProperty("storage.base-dir", base);
+        }
+        String user = "bench" + USERS.incrementAndGet();
+        userDir = Paths.get(base).toAbsolutePath().normalize().resolve(user);
+        Files.createDirectories(userDir);
+        Files.write(userDir.resolve("read.bin"), new byte[FILE_SIZE]);
+        for (int i = 0; i < DIR_ENTRIES; i++) {
+            Path p = userDir.resolve(String.format("document-%04d.txt", i));
+            if (!Files.exists(p)) Files.createFile(p);
+        }
+
+        conns = new InMemoryConnections();
+        protocol = new TftpProtocol();
+        protocol.start(1, conns);
+        protocol.process(("\0\7" + user + "\0").getBytes(StandardCharsets.UTF_8));
+        if (conns.lastOpcode() != 4) throw new IllegalStateException("login failed");
+    }
+
+    @TearDown
+    public void tearDown() {
+        protocol.process(new byte[]{0, 10}); // DISC, so the session is gone
+    }
+
+    private void sendAck(int block) {
+        ack[2] = (byte) (block >> 8);
+        ack[3] = (byte) block;
+        protocol.process(ack);
+    }
+
+    /** ACKs until a DATA block shorter than {@code blksize} (the last one) was sent */
+    private void ackUntilLast(int blksize) {
+        while (conns.lastOpcode() == 3 && conns.lastDataSize() == blksize) sendAck(conns.lastBlock());
+    }
+
+    @Benchmark
+    public long rrq(Transfer t) {
+        protocol.process(t.rrq);
+        if (conns.lastOpcode() == 11) sendAck(0); // OACK
+        ackUntilLast(t.blksize);
+        return conns.bytesSent();
+    }
+
+    @Benchmark
+    public long wrq(Transfer t) throws IOException {
+        protocol.process(t.wrq);
+        int blocks = FILE_SIZE / t.blksize;
+        for (int b = 1; b <= blocks; b++) {
+            t.fullBlock[4] = (byte) (b >> 8);
+            t.fullBlock[5] = (byte) b;
+            protocol.process(t.fullBlock);
+        }
+        t.lastBlock[4] = (byte) ((blocks + 1) >> 8);
+        t.lastBlock[5] = (byte) (blocks + 1);
+        protocol.process(t.lastBlock);
+        Files.delete(userDir.resolve("upload.bin")); // or the next WRQ would find it
+        return conns.bytesSent();
+    }
+
+    @Benchmark
+    public long dirq() {
+        protocol.process(dirq);
+        ackUntilLast(512);
+        return conns.bytesSent();
+    }
+}
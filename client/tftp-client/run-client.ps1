@@ -1,7 +1,9 @@
 # ----- run-client.ps1 -----
 param(
   [string]$remoteHost = "127.0.0.1",
-  [int]$remotePort = 7777
+  [int]$remotePort = 7777,
+  [int]$blksize = 512,
+  [int]$windowsize = 1
 )
 
 $ErrorActionPreference = "Stop"
@@ -44,5 +46,5 @@ Write-Host "Building client..." -ForegroundColor Cyan
 & $mvn -q clean compile
 
 # 5) Run
-Write-Host "Starting TftpClient $remoteHost $remotePort" -ForegroundColor Green
-& "$env:JAVA_HOME\bin\java.exe" -cp "target\classes" bgu.spl.net.impl.tftp.TftpClient $remoteHost $remotePort
+Write-Host "Starting TftpClient $remoteHost $remotePort (blksize $blksize, windowsize $windowsize)" -ForegroundColor Green
+& "$env:JAVA_HOME\bin\java.exe" -cp "target\classes" bgu.spl.net.impl.tftp.TftpClient $remoteHost $remotePort $blksize $windowsize
@@ -4,7 +4,10 @@ package bgu.spl.net.impl.tftp;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Scanner;
+import java.util.zip.CRC32;
 
 public class TftpClient {
     private static FileOutputStream fileOut = null;
@@ -17,6 +20,25 @@ public class TftpClient {
     private static int wrqBlock = 0;             // next block to send after ACK
     private static FileInputStream wrqFileIn = null;
 
+    // block size / window asked for on RRQ/WRQ (args 3 and 4); 512 and 1 send plain legacy requests
+    private static int wantBlksize = 512;
+    private static int wantWindow = 1;
+    private static int blksize = 512;            // negotiated for the current RRQ/WRQ
+    private static int window = 1;
+    private static int rrqUnacked = 0;           // DATA blocks received since our last ACK
+    // "RRQ -c name" / "WRQ -c name" continue an interrupted transfer (the "offset" option)
+    private static boolean resume = false;
+    private static boolean rrqAppend = false;    // the server accepted our offset: append to the local file
+    private static long oackOffset = -1;         // "offset" from the last OACK, -1 if absent
+    private static String oackOffsetCrc = null;
+    // DIRQ blocks are cut every 512 bytes, even inside a name, so names are printed once complete
+    private static final ByteArrayOutputStream dirBuf = new ByteArrayOutputStream();
+    // LIST pages: "LIST [prefix]" shows the first page, "NEXT" the following one
+    private static final int LIST_PAGE = 20;
+    private static boolean isLIST = false;
+    private static String listPrefix = "";
+    private static String listCursor = "";      // empty once the last page was shown
+
     private static short bytesToShort(byte hi, byte lo) {
         return (short)(((hi & 0xff) << 8) | (lo & 0xff));
     }
@@ -29,8 +51,11 @@ public class TftpClient {
         int port = 7777;
         if (args.length > 0) host = args[0];
         if (args.length > 1) port = Integer.parseInt(args[1]);
+        if (args.length > 2) wantBlksize = Math.max(8, Math.min(65464, Integer.parseInt(args[2])));
+        if (args.length > 3) wantWindow = Math.max(1, Math.min(65535, Integer.parseInt(args[3])));
 
         try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true); // windowed DATA goes out as separate frames
             InputStream in = socket.getInputStream();
             OutputStream out = socket.getOutputStream();
             TftpEncoderDecoder encdec = new TftpEncoderDecoder();
@@ -45,12 +70,12 @@ public class TftpClient {
                         short op = bytesToShort(p[0], p[1]);
                         switch (op) {
                             case 4: { // ACK
-                                int block = bytesToShort(p[2], p[3]);
+                                int block = bytesToShort(p[2], p[3]) & 0xffff;
                                 System.out.println("ACK " + block);
 
-                                // WRQ flow: after ACK N, send block N+1; for ACK 0 start transmission
-                                if (isWRQ && wrqFileIn != null) {
-                                    sendNextWrqBlock(out);
+                                // WRQ flow: after ACK of the last block sent, send the next window; ACK 0 starts transmission
+                                if (isWRQ && wrqFileIn != null && block == (wrqBlock & 0xffff)) {
+                                    sendWrqWindow(out);
                                 }
 
                                 if (waitingDiscAck && block == 0) {
@@ -64,7 +89,7 @@ public class TftpClient {
                                 String msg = new String(p, 4, p.length - 5, StandardCharsets.UTF_8);
                                 System.out.println("Error " + code + " " + msg);
                                 // abort current mode on error
-                                isRRQ = isWRQ = isDIRQ = false;
+                                isRRQ = isWRQ = isDIRQ = isLIST = false;
                                 closeQuietly(fileOut);
                                 closeQuietly(wrqFileIn);
                                 wrqFileIn = null; wrqBlock = 0;
@@ -76,37 +101,80 @@ public class TftpClient {
                                 System.out.println("BCAST " + action + " " + fileName);
                                 break;
                             }
+                            case 11: { // OACK: server accepted our options
+                                applyOack(p);
+                                System.out.println("OACK blksize " + blksize + " windowsize " + window);
+                                if (resume && isRRQ) {
+                                    rrqAppend = oackOffset > 0;
+                                    System.out.println(rrqAppend ? "Resuming download at byte " + oackOffset
+                                            : "Local copy doesn't match, downloading from the start.");
+                                } else if (resume && isWRQ && wrqFileIn != null && oackOffset > 0) {
+                                    if (resumeUpload()) {
+                                        System.out.println("Resuming upload at byte " + oackOffset);
+                                    } else {
+                                        // the server's partial isn't ours: a plain WRQ drops it and starts over
+                                        System.out.println("Server copy doesn't match, uploading from the start.");
+                                        resume = false;
+                                        out.write(requestCmd((short)2, wrqFilename));
+                                        out.flush();
+                                        break;
+                                    }
+                                }
+                                resume = false;
+                                if (isRRQ) {
+                                    out.write(new byte[]{0,4,0,0}); // ACK 0 starts the download
+                                    out.flush();
+                                } else if (isWRQ && wrqFileIn != null) {
+                                    sendWrqWindow(out);
+                                }
+                                break;
+                            }
                             case 3: { // DATA
-                                int size  = bytesToShort(p[2], p[3]);
-                                int block = bytesToShort(p[4], p[5]);
+                                int size  = bytesToShort(p[2], p[3]) & 0xffff;
+                                int block = bytesToShort(p[4], p[5]) & 0xffff;
                                 byte[] data = new byte[size];
                                 System.arraycopy(p, 6, data, 0, size);
+                                boolean rrq = isRRQ;
+                                boolean last = size < (rrq ? blksize : 512);
 
                                 if (isRRQ) {
                                     try {
                                         if (fileOut == null) {
-                                            fileOut = new FileOutputStream(rrqFilename == null ? "downloaded_file" : rrqFilename);
+                                            fileOut = new FileOutputStream(rrqFilename == null ? "downloaded_file" : rrqFilename, rrqAppend);
                                         }
                                         fileOut.write(data);
                                     } catch (IOException e) {
                                         System.out.println("Failed to save file.");
                                         isRRQ = false;
                                     }
+                                } else if (isLIST) {
+                                    dirBuf.write(data, 0, data.length);
+                                    if (last) {
+                                        printListPage(dirBuf.toByteArray());
+                                        dirBuf.reset();
+                                        isLIST = false;
+                                    }
                                 } else if (isDIRQ) {
-                                    String dirList = new String(data, StandardCharsets.UTF_8);
-                                    for (String f : dirList.split("\0")) {
-                                        if (!f.isEmpty()) System.out.println(f);
+                                    dirBuf.write(data, 0, data.length);
+                                    if (last) {
+                                        for (String f : new String(dirBuf.toByteArray(), StandardCharsets.UTF_8).split("\0")) {
+                                            if (!f.isEmpty()) System.out.println(f);
+                                        }
+                                        dirBuf.reset();
                                     }
                                 } else {
                                     // unknown context; still ACK per spec to allow server progress
                                 }
 
-                                // ACK the DATA block
-                                out.write(new byte[]{0,4, shortToBytes(block)[0], shortToBytes(block)[1]});
-                                out.flush();
+                                // ACK the DATA block (downloads: once per window)
+                                if (!rrq || last || ++rrqUnacked >= window) {
+                                    rrqUnacked = 0;
+                                    out.write(new byte[]{0,4, shortToBytes(block)[0], shortToBytes(block)[1]});
+                                    out.flush();
+                                }
 
                                 // if last block => finalize
-                                if (size < 512) {
+                                if (last) {
                                     if (isRRQ) {
                                         closeQuietly(fileOut);
                                         fileOut = null; rrqFilename = null; isRRQ = false;
@@ -157,6 +225,11 @@ public class TftpClient {
         String[] parts = line.trim().split(" ", 2);
         String cmd = parts[0].toUpperCase();
         String arg = (parts.length > 1) ? parts[1] : null;
+        resume = false;
+        if ((cmd.equals("RRQ") || cmd.equals("WRQ")) && arg != null && arg.startsWith("-c ")) {
+            resume = true;
+            arg = arg.substring(3).trim();
+        }
 
         switch (cmd) {
             case "LOGRQ":
@@ -167,14 +240,25 @@ public class TftpClient {
                 return stringCmd((short)8, arg);
             case "RRQ":
                 if (arg == null) return null;
-                // precheck: local file must NOT exist
-                if (new File(arg).exists()) {
+                // precheck: local file must NOT exist, unless it is the start of the one we resume
+                File local = new File(arg);
+                if (local.exists() && !resume) {
                     System.out.println("file already exists");
                     return null;
                 }
                 isRRQ = true; isDIRQ = false; isWRQ = false;
                 rrqFilename = arg;
-                return stringCmd((short)1, arg);
+                blksize = 512; window = 1; rrqUnacked = 0; rrqAppend = false;
+                if (resume && local.length() > 0) {
+                    try {
+                        return requestCmd((short)1, arg, "offset", String.valueOf(local.length()),
+                                "offsetcrc", crcOfPrefix(local, local.length()));
+                    } catch (IOException e) {
+                        System.out.println("Cannot read " + arg + ", downloading from the start.");
+                    }
+                }
+                resume = false;
+                return requestCmd((short)1, arg);
             case "WRQ":
                 if (arg == null) return null;
                 // precheck: local file MUST exist
@@ -192,10 +276,22 @@ public class TftpClient {
                     isWRQ = false;
                     return null;
                 }
-                return stringCmd((short)2, arg);
+                blksize = 512; window = 1;
+                return resume ? requestCmd((short)2, arg, "resume", "1") : requestCmd((short)2, arg);
             case "DIRQ":
                 isDIRQ = true; isRRQ = false; isWRQ = false;
+                dirBuf.reset();
                 return new byte[]{0,6};
+            case "LIST":
+                listPrefix = (arg == null) ? "" : arg;
+                listCursor = "";
+                return listCmd();
+            case "NEXT":
+                if (listCursor.isEmpty()) {
+                    System.out.println("No more pages.");
+                    return null;
+                }
+                return listCmd();
             case "DISC":
                 return new byte[]{0,10};
             default:
@@ -204,10 +300,41 @@ public class TftpClient {
         }
     }
 
+    /** LIST: 12 + (option + 0 + value + 0)* + 0, with sizes and times; empty options are left out */
+    private static byte[] listCmd() {
+        isLIST = true; isDIRQ = false; isRRQ = false; isWRQ = false;
+        dirBuf.reset();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(0); b.write(12);
+        if (!listPrefix.isEmpty()) { writeZ(b, "prefix"); writeZ(b, listPrefix); }
+        if (!listCursor.isEmpty()) { writeZ(b, "after"); writeZ(b, listCursor); }
+        writeZ(b, "limit"); writeZ(b, String.valueOf(LIST_PAGE));
+        writeZ(b, "meta"); writeZ(b, "1");
+        b.write(0);
+        return b.toByteArray();
+    }
+
+    /** next-page cursor, then name, size and mtime (ms) per file */
+    private static void printListPage(byte[] page) {
+        String[] f = new String(page, StandardCharsets.UTF_8).split("\0", -1);
+        listCursor = f[0];
+        for (int i = 1; i + 2 < f.length; i += 3) {
+            String when = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(Long.parseLong(f[i + 2])));
+            System.out.printf("%-40s %12s  %s%n", f[i], f[i + 1], when);
+        }
+        System.out.println(listCursor.isEmpty() ? "End of listing." : "More files: NEXT");
+    }
+
+    private static void sendWrqWindow(OutputStream out) throws IOException {
+        for (int i = 0; i < window && wrqFileIn != null; i++) {
+            sendNextWrqBlock(out);
+        }
+    }
+
     private static void sendNextWrqBlock(OutputStream out) throws IOException {
-        byte[] buf = new byte[512];
-        int n = wrqFileIn.read(buf);
-        if (n < 0) n = 0;
+        byte[] buf = new byte[blksize];
+        int n = 0, r;
+        while (n < blksize && (r = wrqFileIn.read(buf, n, blksize - n)) > 0) n += r;
         wrqBlock++;
         ByteArrayOutputStream packet = new ByteArrayOutputStream(6 + n);
         packet.write(0); packet.write(3);
@@ -217,7 +344,7 @@ public class TftpClient {
         out.write(packet.toByteArray());
         out.flush();
 
-        if (n < 512) {
+        if (n < blksize) {
             // finished sending
             closeQuietly(wrqFileIn);
             wrqFileIn = null; isWRQ = false; wrqBlock = 0;
@@ -225,6 +352,83 @@ public class TftpClient {
         }
     }
 
+    /**
+     * RRQ/WRQ; with non-default settings or extra options:
+     * 0 + name + 0 + (option + 0 + value + 0)* + 0
+     * @param extra more option/value pairs
+     */
+    private static byte[] requestCmd(short opcode, String name, String... extra) {
+        if (wantBlksize == 512 && wantWindow == 1 && extra.length == 0) return stringCmd(opcode, name);
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(opcode >> 8); b.write(opcode & 0xff);
+        b.write(0);
+        writeZ(b, name);
+        if (wantBlksize != 512) { writeZ(b, "blksize"); writeZ(b, String.valueOf(wantBlksize)); }
+        if (wantWindow != 1) { writeZ(b, "windowsize"); writeZ(b, String.valueOf(wantWindow)); }
+        for (String s : extra) writeZ(b, s);
+        b.write(0);
+        return b.toByteArray();
+    }
+
+    /** CRC-32 of the first `length` bytes of `f`, as 8 hex digits (the "offsetcrc" option) */
+    private static String crcOfPrefix(File f, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        try (FileInputStream in = new FileInputStream(f)) {
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) throw new EOFException();
+                crc.update(buf, 0, n);
+                left -= n;
+            }
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+    /** skips what the server already has, if its checksum matches our file; false otherwise */
+    private static boolean resumeUpload() {
+        File f = new File(wrqFilename);
+        try {
+            if (oackOffset > f.length() || !crcOfPrefix(f, oackOffset).equalsIgnoreCase(oackOffsetCrc)) return false;
+            long left = oackOffset;
+            while (left > 0) {
+                long n = wrqFileIn.skip(left);
+                if (n <= 0) return false;
+                left -= n;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void writeZ(ByteArrayOutputStream b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.write(bytes, 0, bytes.length);
+        b.write(0);
+    }
+
+    /** options missing from the OACK keep their defaults */
+    private static void applyOack(byte[] p) {
+        blksize = 512; window = 1;
+        oackOffset = -1; oackOffsetCrc = null;
+        int i = 2;
+        while (i < p.length && p[i] != 0) {
+            int k = i; while (p[i] != 0) i++;
+            String opt = new String(p, k, i - k, StandardCharsets.UTF_8); i++;
+            int v = i; while (i < p.length && p[i] != 0) i++;
+            if (i >= p.length) break;
+            String val = new String(p, v, i - v, StandardCharsets.UTF_8); i++;
+            try {
+                if (opt.equalsIgnoreCase("blksize")) blksize = Integer.parseInt(val);
+                else if (opt.equalsIgnoreCase("windowsize")) window = Integer.parseInt(val);
+                else if (opt.equalsIgnoreCase("offset")) oackOffset = Long.parseLong(val);
+                else if (opt.equalsIgnoreCase("offsetcrc")) oackOffsetCrc = val;
+            } catch (NumberFormatException ignore) {}
+        }
+    }
+
     private static byte[] stringCmd(short opcode, String s) {
         byte[] b = s.getBytes(StandardCharsets.UTF_8);
         byte[] out = new byte[2 + b.length + 1];
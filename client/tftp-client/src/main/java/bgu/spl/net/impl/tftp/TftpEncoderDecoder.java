@@ -10,6 +10,7 @@ import java.util.Arrays;
  *  - ACK   (4):  2(op) + 2(block)
  *  - ERROR (5):  2(op) + 2(code) + <msg> + 0
  *  - BCAST (9):  2(op) + 1(flag) + <filename> + 0
+ *  - OACK  (11): 2(op) + (<option> + 0 + <value> + 0)* + 0
  * For encode(), the client builds packets manually, so we passthrough.
  */
 public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
@@ -56,6 +57,12 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
                     }
                     break;
 
+                case 11: // OACK: option/value strings, ends with an empty string
+                    if (len >= 3 && buf[len - 1] == 0 && (len == 3 || buf[len - 2] == 0)) {
+                        return pop();
+                    }
+                    break;
+
                 default:
                     // Not expected from server, but if it has a trailing 0 (string-cmd style) accept it.
                     if (len >= 3 && buf[len - 1] == 0) {
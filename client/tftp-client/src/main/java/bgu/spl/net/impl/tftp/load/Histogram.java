@@ -0,0 +1,58 @@
+package bgu.spl.net.impl.tftp.load;
+
+/**
+ * Log-linear histogram of nanosecond latencies (16 buckets per power of two, so percentiles
+ * are within about 6 %). Not thread safe: every simulated client records into its own and
+ * they are {@link #add added} up for the report.
+ */
+final class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final long[] counts = new long[64 * SUB];
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        total++;
+        if (nanos > max) max = nanos;
+    }
+
+    void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long count() { return total; }
+
+    /** @return the value at quantile {@code q} (0..1) in nanoseconds, or 0 if nothing was recorded */
+    long percentile(double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, highestIn(i));
+        }
+        return max;
+    }
+
+    // values below SUB get a bucket each; above that, the top SUB_BITS + 1 bits pick the bucket
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        int sub = (int) (v >>> shift) & (SUB - 1);
+        return (shift + 1) * SUB + sub;
+    }
+
+    private static long highestIn(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        long low = (long) (SUB + i % SUB) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
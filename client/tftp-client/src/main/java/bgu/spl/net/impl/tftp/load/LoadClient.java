@@ -0,0 +1,318 @@
+package bgu.spl.net.impl.tftp.load;
+
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * One simulated user: its own connection and login, then operations picked from the
+ * configured mix until the deadline. Everything is recorded into this client's own
+ * {@link Stats}, so the hot loop shares nothing with the other clients.
+ */
+final class LoadClient implements Runnable {
+
+    enum Op { RRQ, WRQ, DIRQ, DELRQ }
+
+    /** what one client measured */
+    static final class Stats {
+        final Histogram[] ops = new Histogram[Op.values().length];
+        final long[] errors = new long[Op.values().length];
+        final Histogram blocks = new Histogram();  // request/ACK/DATA window -> first answer
+        final Histogram connect = new Histogram(); // TCP connect + LOGRQ
+        long payloadBytes;
+        boolean connectFailed;
+        String failure;                            // why the connection was lost, if it was
+
+        Stats() {
+            for (int i = 0; i < ops.length; i++) ops[i] = new Histogram();
+        }
+
+        void add(Stats o) {
+            for (int i = 0; i < ops.length; i++) {
+                ops[i].add(o.ops[i]);
+                errors[i] += o.errors[i];
+            }
+            blocks.add(o.blocks);
+            connect.add(o.connect);
+            payloadBytes += o.payloadBytes;
+        }
+    }
+
+    private static final String SEED = "seed.bin";
+
+    private final LoadGenerator.Config cfg;
+    private final String user;
+    private final byte[] payload;
+    private final Random random;
+    final Stats stats = new Stats();
+
+    private Socket sock;
+    private InputStream in;
+    private OutputStream out;
+    private final TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+    private final Deque<String> uploaded = new ArrayDeque<>();
+    private int uploads;
+    private boolean measuring; // block latencies of the setup upload are not part of the run
+
+    LoadClient(LoadGenerator.Config cfg, String user, byte[] payload, long seed) {
+        this.cfg = cfg;
+        this.user = user;
+        this.payload = payload;
+        this.random = new Random(seed);
+    }
+
+    /** connects, logs in and uploads the file RRQs will read; called before the clock starts */
+    boolean open() {
+        long t0 = System.nanoTime();
+        try {
+            sock = new Socket();
+            sock.setTcpNoDelay(true);
+            sock.connect(new InetSocketAddress(cfg.host, cfg.port), 10_000);
+            sock.setSoTimeout(30_000);
+            in = new BufferedInputStream(sock.getInputStream(), 1 << 16);
+            out = new BufferedOutputStream(sock.getOutputStream(), 1 << 16);
+            send(stringCmd(7, user));
+            byte[] p = next();
+            if (op(p) != 4) throw new IOException("login refused: " + describe(p));
+            stats.connect.record(System.nanoTime() - t0);
+            if (!wrq(SEED)) throw new IOException("could not upload " + SEED);
+            uploaded.clear(); // the seed stays until the end
+            stats.payloadBytes = 0;
+            return true;
+        } catch (IOException e) {
+            stats.connectFailed = true;
+            stats.failure = e.toString();
+            close();
+            return false;
+        }
+    }
+
+    private CountDownLatch start;
+    private long deadline;
+
+    void arm(CountDownLatch start, long deadlineNanos) {
+        this.start = start;
+        this.deadline = deadlineNanos;
+    }
+
+    @Override
+    public void run() {
+        try {
+            start.await();
+            measuring = true;
+            while (System.nanoTime() < deadline) {
+                Op op = pick();
+                long t0 = System.nanoTime();
+                boolean ok;
+                switch (op) {
+                    case RRQ: ok = rrq(SEED); break;
+                    case WRQ: ok = wrq(nextUploadName()); break;
+                    case DIRQ: ok = dirq(); break;
+                    default: {
+                        String name = uploaded.poll();
+                        if (name == null) { op = Op.WRQ; ok = wrq(nextUploadName()); }
+                        else ok = delrq(name);
+                    }
+                }
+                stats.ops[op.ordinal()].record(System.nanoTime() - t0);
+                if (!ok) stats.errors[op.ordinal()]++;
+            }
+            if (cfg.cleanup) {
+                String name;
+                while ((name = uploaded.poll()) != null) delrq(name);
+                delrq(SEED);
+            }
+            send(new byte[]{0, 10});
+            try {
+                next();
+            } catch (IOException ignore) { // the server may close before we read its ACK
+            }
+        } catch (IOException e) {
+            stats.failure = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private Op pick() {
+        int r = random.nextInt(cfg.mixTotal);
+        for (Op op : Op.values()) {
+            r -= cfg.mix[op.ordinal()];
+            if (r < 0) return op;
+        }
+        return Op.RRQ;
+    }
+
+    private String nextUploadName() {
+        return "load-" + (++uploads) + ".bin";
+    }
+
+    // -------- operations; false means the server answered with an ERROR --------
+
+    private boolean rrq(String name) throws IOException {
+        send(request(1, name));
+        long t = System.nanoTime();
+        int blksize = 512, window = 1, unacked = 0;
+        while (true) {
+            byte[] p = next();
+            long now = System.nanoTime();
+            int op = op(p);
+            if (op == 5) return false;
+            if (op == 11) {
+                int[] o = oack(p);
+                blksize = o[0]; window = o[1];
+                block(now - t);
+                sendAck(0);
+                t = System.nanoTime();
+                continue;
+            }
+            if (op != 3) throw new IOException("unexpected " + describe(p) + " during RRQ");
+            int size = u16(p, 2), block = u16(p, 4);
+            if (unacked == 0) block(now - t); // first block answering our last ACK
+            stats.payloadBytes += size;
+            boolean last = size < blksize;
+            if (last || ++unacked >= window) {
+                sendAck(block);
+                unacked = 0;
+                t = System.nanoTime();
+            }
+            if (last) return true;
+        }
+    }
+
+    private boolean wrq(String name) throws IOException {
+        send(request(2, name));
+        long t = System.nanoTime();
+        byte[] p = next();
+        block(System.nanoTime() - t);
+        int blksize = 512, window = 1;
+        if (op(p) == 11) {
+            int[] o = oack(p);
+            blksize = o[0]; window = o[1];
+        } else if (op(p) != 4) {
+            return false;
+        }
+
+        int blocks = payload.length / blksize + 1; // the last one is short, maybe empty
+        byte[] frame = new byte[6 + blksize];
+        frame[1] = 3;
+        int next = 1;
+        while (next <= blocks) {
+            int end = Math.min(blocks, next + window - 1);
+            for (int b = next; b <= end; b++) {
+                int off = (b - 1) * blksize;
+                int size = Math.min(blksize, payload.length - off);
+                frame[2] = (byte) (size >> 8); frame[3] = (byte) size;
+                frame[4] = (byte) (b >> 8);    frame[5] = (byte) b;
+                System.arraycopy(payload, off, frame, 6, size);
+                out.write(frame, 0, 6 + size);
+                stats.payloadBytes += size;
+            }
+            out.flush();
+            t = System.nanoTime();
+            p = next();
+            block(System.nanoTime() - t);
+            if (op(p) == 5) return false;
+            if (op(p) != 4 || u16(p, 2) != (end & 0xffff)) throw new IOException("unexpected " + describe(p) + " during WRQ");
+            next = end + 1;
+        }
+        uploaded.add(name);
+        return true;
+    }
+
+    private boolean dirq() throws IOException {
+        send(new byte[]{0, 6});
+        while (true) {
+            byte[] p = next();
+            if (op(p) == 5) return false;
+            if (op(p) != 3) throw new IOException("unexpected " + describe(p) + " during DIRQ");
+            int size = u16(p, 2);
+            sendAck(u16(p, 4));
+            if (size < 512) return true;
+        }
+    }
+
+    private boolean delrq(String name) throws IOException {
+        send(stringCmd(8, name));
+        return op(next()) == 4;
+    }
+
+    private void block(long nanos) {
+        if (measuring) stats.blocks.record(nanos);
+    }
+
+    // -------- wire helpers --------
+
+    /** the next packet, skipping BCASTs (the server tells us about our own uploads too) */
+    private byte[] next() throws IOException {
+        int r;
+        while ((r = in.read()) >= 0) {
+            byte[] p = decoder.decodeNextByte((byte) r);
+            if (p != null && op(p) != 9) return p;
+        }
+        throw new EOFException("server closed the connection");
+    }
+
+    private void send(byte[] b) throws IOException {
+        out.write(b);
+        out.flush();
+    }
+
+    private void sendAck(int block) throws IOException {
+        send(new byte[]{0, 4, (byte) (block >> 8), (byte) block});
+    }
+
+    /** plain "op name\0" unless options are configured, then "op \0 name \0 opts... \0" */
+    private byte[] request(int op, String name) {
+        if (cfg.blksize == 512 && cfg.windowsize == 1) return stringCmd(op, name);
+        return cmd(op, "\0" + name + "\0blksize\0" + cfg.blksize + "\0windowsize\0" + cfg.windowsize + "\0\0");
+    }
+
+    private static byte[] stringCmd(int op, String s) {
+        return cmd(op, s + "\0");
+    }
+
+    private static byte[] cmd(int op, String body) {
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[2 + b.length];
+        out[1] = (byte) op;
+        System.arraycopy(b, 0, out, 2, b.length);
+        return out;
+    }
+
+    /** @return {blksize, windowsize} accepted by an OACK; options it leaves out keep their defaults */
+    private static int[] oack(byte[] p) {
+        int[] o = {512, 1};
+        String[] parts = new String(p, 2, p.length - 2, StandardCharsets.UTF_8).split("\0");
+        for (int i = 0; i + 1 < parts.length; i += 2) {
+            if (parts[i].equalsIgnoreCase("blksize")) o[0] = Integer.parseInt(parts[i + 1]);
+            else if (parts[i].equalsIgnoreCase("windowsize")) o[1] = Integer.parseInt(parts[i + 1]);
+        }
+        return o;
+    }
+
+    private static int op(byte[] p) { return u16(p, 0); }
+
+    private static int u16(byte[] p, int i) { return ((p[i] & 0xff) << 8) | (p[i + 1] & 0xff); }
+
+    private static String describe(byte[] p) {
+        if (op(p) == 5) return "ERROR " + u16(p, 2) + " " + new String(p, 4, p.length - 5, StandardCharsets.UTF_8);
+        return "opcode " + op(p);
+    }
+
+    private void close() {
+        try {
+            if (sock != null) sock.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
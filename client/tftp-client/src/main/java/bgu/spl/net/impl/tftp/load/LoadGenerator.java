@@ -0,0 +1,233 @@
+package bgu.spl.net.impl.tftp.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator for the TFTP server. For every level in {@code --clients} it
+ * connects and logs in that many clients, lets them run the operation mix for
+ * {@code --duration} seconds, and prints throughput and latency percentiles; a summary
+ * table across the levels shows how the server scales with connections.
+ *
+ * <pre>
+ * java -cp target/classes bgu.spl.net.impl.tftp.load.LoadGenerator
+ *      --host 127.0.0.1 --port 7777 --clients 1,16,64 --duration 10
+ *      --size 65536 --blksize 8192 --windowsize 8 --mix rrq=50,wrq=20,dirq=20,delrq=10
+ * </pre>
+ *
+ * Each client logs in as {@code load<run>-<n>}, uploads {@code seed.bin} for its RRQs and
+ * deletes what it uploaded when the level ends (unless {@code --keep}).
+ */
+public final class LoadGenerator {
+
+    static final class Config {
+        String host = "127.0.0.1";
+        int port = 7777;
+        int[] levels = {1, 16, 64};
+        int duration = 10;          // seconds per level
+        int size = 64 * 1024;       // bytes per RRQ/WRQ
+        int blksize = 512;
+        int windowsize = 1;
+        int[] mix = {50, 20, 20, 10}; // weights, in LoadClient.Op order
+        int mixTotal = 100;
+        int rampMillis = 0;         // spread the connects of a level over this long
+        boolean cleanup = true;
+    }
+
+    /** one line of the summary table */
+    private static final class Level {
+        int clients, connected;
+        double opsPerSec, mbPerSec;
+        long p50, p99, p999;        // block latency, ns
+        long errors;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Config cfg;
+        try {
+            cfg = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+
+        byte[] payload = new byte[cfg.size];
+        new Random(42).nextBytes(payload);
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36);
+
+        System.out.printf("target %s:%d, %d byte files, blksize %d, windowsize %d, mix %s%n",
+                cfg.host, cfg.port, cfg.size, cfg.blksize, cfg.windowsize, mixString(cfg));
+        List<Level> summary = new ArrayList<>();
+        for (int n : cfg.levels) summary.add(runLevel(cfg, n, run, payload));
+
+        System.out.println();
+        System.out.println("clients  connected      ops/s       MB/s   block p50   block p99  block p999   errors");
+        for (Level l : summary) {
+            System.out.printf(Locale.ROOT, "%7d  %9d  %9.1f  %9.2f  %10s  %10s  %10s  %7d%n",
+                    l.clients, l.connected, l.opsPerSec, l.mbPerSec,
+                    ms(l.p50), ms(l.p99), ms(l.p999), l.errors);
+        }
+    }
+
+    private static Level runLevel(Config cfg, int n, String run, byte[] payload) throws InterruptedException {
+        System.out.println();
+        System.out.println("== " + n + " client" + (n == 1 ? "" : "s") + " ==");
+
+        List<LoadClient> clients = new ArrayList<>(n);
+        List<LoadClient> failed = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            LoadClient c = new LoadClient(cfg, "load" + run + "-" + n + "-" + i, payload, 31L * n + i);
+            if (c.open()) clients.add(c);
+            else failed.add(c);
+            if (cfg.rampMillis > 0 && n > 1) Thread.sleep(cfg.rampMillis / (n - 1));
+        }
+
+        LoadClient.Stats total = new LoadClient.Stats();
+        for (LoadClient c : failed) total.add(c.stats);
+        CountDownLatch start = new CountDownLatch(1);
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.SECONDS.toNanos(cfg.duration);
+        List<Thread> threads = new ArrayList<>(clients.size());
+        for (LoadClient c : clients) {
+            c.arm(start, deadline);
+            Thread t = new Thread(c, "load-" + threads.size());
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+        // the clock stops at the deadline, not after the last in-flight transfer and the cleanup
+        double secs = Math.max(cfg.duration, 1e-9);
+
+        int lost = 0;
+        String firstFailure = failed.isEmpty() ? null : failed.get(0).stats.failure;
+        for (LoadClient c : clients) {
+            total.add(c.stats);
+            if (c.stats.failure != null) {
+                lost++;
+                if (firstFailure == null) firstFailure = c.stats.failure;
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "connect+login  ok %d, failed %d, p50 %s, p99 %s, max %s ms%n",
+                clients.size(), failed.size(),
+                ms(total.connect.percentile(0.5)), ms(total.connect.percentile(0.99)),
+                ms(total.connect.percentile(1.0)));
+        if (lost > 0) System.out.println("connections lost during the run: " + lost);
+        if (firstFailure != null) System.out.println("first failure: " + firstFailure);
+
+        System.out.println("op          count   errors      ops/s     p50 ms     p99 ms    p999 ms");
+        long ops = 0, errors = 0;
+        for (LoadClient.Op op : LoadClient.Op.values()) {
+            Histogram h = total.ops[op.ordinal()];
+            long e = total.errors[op.ordinal()];
+            ops += h.count();
+            errors += e;
+            if (h.count() == 0) continue;
+            System.out.printf(Locale.ROOT, "%-8s %8d %8d %10.1f %10s %10s %10s%n",
+                    op, h.count(), e, h.count() / secs,
+                    ms(h.percentile(0.5)), ms(h.percentile(0.99)), ms(h.percentile(0.999)));
+        }
+        Histogram b = total.blocks;
+        System.out.printf(Locale.ROOT, "block    %8d %8s %10s %10s %10s %10s%n", b.count(), "", "",
+                ms(b.percentile(0.5)), ms(b.percentile(0.99)), ms(b.percentile(0.999)));
+        System.out.printf(Locale.ROOT, "payload  %.2f MB/s%n", total.payloadBytes / secs / (1 << 20));
+
+        Level l = new Level();
+        l.clients = n;
+        l.connected = clients.size();
+        l.opsPerSec = ops / secs;
+        l.mbPerSec = total.payloadBytes / secs / (1 << 20);
+        l.p50 = b.percentile(0.5);
+        l.p99 = b.percentile(0.99);
+        l.p999 = b.percentile(0.999);
+        l.errors = errors + failed.size() + lost;
+        return l;
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String mixString(Config cfg) {
+        StringBuilder sb = new StringBuilder();
+        for (LoadClient.Op op : LoadClient.Op.values()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(op.name().toLowerCase(Locale.ROOT)).append('=').append(cfg.mix[op.ordinal()]);
+        }
+        return sb.toString();
+    }
+
+    static Config parse(String[] args) {
+        Config cfg = new Config();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--keep")) { cfg.cleanup = false; continue; }
+            if (a.equals("-h") || a.equals("--help")) { usage(); System.exit(0); }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + a);
+            String v = args[++i];
+            try {
+                switch (a) {
+                    case "--host": cfg.host = v; break;
+                    case "--port": cfg.port = Integer.parseInt(v); break;
+                    case "--clients": cfg.levels = levels(v); break;
+                    case "--duration": cfg.duration = positive(a, Integer.parseInt(v)); break;
+                    case "--size": cfg.size = Math.max(0, Integer.parseInt(v)); break;
+                    case "--blksize": cfg.blksize = Math.max(8, Math.min(65464, Integer.parseInt(v))); break;
+                    case "--windowsize": cfg.windowsize = Math.max(1, Math.min(65535, Integer.parseInt(v))); break;
+                    case "--mix": mix(cfg, v); break;
+                    case "--ramp": cfg.rampMillis = Math.max(0, Integer.parseInt(v)); break;
+                    default: throw new IllegalArgumentException("unknown option " + a);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad value for " + a + ": " + v);
+            }
+        }
+        return cfg;
+    }
+
+    private static int[] levels(String v) {
+        String[] parts = v.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) out[i] = positive("--clients", Integer.parseInt(parts[i].trim()));
+        return out;
+    }
+
+    private static void mix(Config cfg, String v) {
+        int[] mix = new int[LoadClient.Op.values().length];
+        for (String part : v.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) throw new IllegalArgumentException("bad --mix entry " + part);
+            LoadClient.Op op;
+            try {
+                op = LoadClient.Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown operation in --mix: " + kv[0]);
+            }
+            mix[op.ordinal()] = Math.max(0, Integer.parseInt(kv[1].trim()));
+        }
+        int total = 0;
+        for (int w : mix) total += w;
+        if (total == 0) throw new IllegalArgumentException("--mix has no operations");
+        cfg.mix = mix;
+        cfg.mixTotal = total;
+    }
+
+    private static int positive(String name, int v) {
+        if (v <= 0) throw new IllegalArgumentException(name + " must be positive");
+        return v;
+    }
+
+    private static void usage() {
+        System.err.println("usage: LoadGenerator [--host H] [--port P] [--clients 1,16,64] [--duration SECS]");
+        System.err.println("                     [--size BYTES] [--blksize N] [--windowsize N]");
+        System.err.println("                     [--mix rrq=50,wrq=20,dirq=20,delrq=10] [--ramp MILLIS] [--keep]");
+    }
+}
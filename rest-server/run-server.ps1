@@ -30,6 +30,13 @@ $projectRoot = Split-Path -Parent $PSScriptRoot
 $storageDir = Join-Path $projectRoot "server\Files"
 $env:STORAGE_DIR = $storageDir
 
+Write-Host "Installing the shared telemetry format..." -ForegroundColor Cyan
+& $mvn -q -f (Join-Path $projectRoot "telemetry-format\pom.xml") install
+if ($LASTEXITCODE -ne 0) {
+  Write-Error "Build failed!"
+  exit 1
+}
+
 Write-Host "Building REST server..." -ForegroundColor Cyan
 & $mvn -q clean compile
 if ($LASTEXITCODE -ne 0) {
@@ -2,18 +2,32 @@ package dropbox.rest;
 
 import dropbox.rest.meta.FileMeta;
 import dropbox.rest.meta.FileMetaRepo;
-import dropbox.rest.util.FileUtil;
+import dropbox.rest.util.ContentProbe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import jakarta.annotation.PostConstruct;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
 import static java.nio.file.StandardWatchEventKinds.*;
 
+/**
+ * Keeps {@link FileMeta} up to date for files that change on disk (TFTP uploads and deletes).
+ * Watches every user folder under the base dir, and the base dir itself for new users. Rows
+ * use FileController's id, {@code owner/name}, so a file the REST side just saved and described
+ * is recognised and not read again.
+ */
 @Component
 public class FSWatcher {
   private static final Logger log = LoggerFactory.getLogger(FSWatcher.class);
+  // lets a writer finish (and FileController save its row) before the change is looked at
+  private static final long SETTLE_MS = 300;
   private final Path baseDir;
   private final FileMetaRepo repo;
 
@@ -31,35 +45,83 @@ public class FSWatcher {
 
   private void loop() {
     try (WatchService ws = FileSystems.getDefault().newWatchService()) {
-      baseDir.register(ws, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      baseDir.register(ws, ENTRY_CREATE);
+      try (Stream<Path> users = Files.list(baseDir)) {
+        for (Path dir : (Iterable<Path>) users::iterator) watchUser(ws, dir);
+      }
       for (;;) {
         WatchKey key = ws.take();
+        Thread.sleep(SETTLE_MS);
+        Path dir = (Path) key.watchable();
+        // a file being written fires many events; look at each one once per batch
+        Map<Path, WatchEvent.Kind<?>> latest = new LinkedHashMap<>();
         for (WatchEvent<?> ev : key.pollEvents()) {
+          if (ev.kind() == OVERFLOW) continue;
           Path rel = (Path) ev.context();
-          Path p = baseDir.resolve(rel);
-          String name = rel.toString();
-          try {
-            if ((ev.kind() == ENTRY_CREATE || ev.kind() == ENTRY_MODIFY) && Files.isRegularFile(p)) {
-              FileMeta meta = repo.findById(name).orElseGet(FileMeta::new);
-              int nextVersion = meta.getName()==null ? 1 : (meta.getVersion()+1);
-              meta.setName(name);
-              meta.setSize(Files.size(p));
-              meta.setMime(FileUtil.guessMime(p));
-              meta.setSha256(FileUtil.sha256(p));
-              meta.setVersion(nextVersion);
-              if (meta.getCreatedBy()==null) meta.setCreatedBy("tftp-or-rest");
-              repo.save(meta);
-            } else if (ev.kind() == ENTRY_DELETE) {
-              repo.deleteById(name);
-            }
-          } catch (Exception e) {
-            log.warn("Error processing file system event for {}: {}", name, e.getMessage());
-          }
+          if (dir.equals(baseDir)) newUser(ws, baseDir.resolve(rel));
+          else latest.put(rel, ev.kind());
+        }
+        for (Map.Entry<Path, WatchEvent.Kind<?>> e : latest.entrySet()) {
+          onChange(dir.getFileName().toString(), e.getKey(), dir.resolve(e.getKey()), e.getValue());
         }
-        key.reset();
+        key.reset(); // false once the user folder is gone, and the key is dropped
       }
     } catch (Exception e) {
       log.error("File system watcher terminated unexpectedly", e);
     }
   }
+
+  /** user folders only: not files at the top, nor .blobs, .versions and the like */
+  private boolean watchUser(WatchService ws, Path dir) throws IOException {
+    if (!Files.isDirectory(dir) || dir.getFileName().toString().startsWith(".")) return false;
+    dir.register(ws, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    return true;
+  }
+
+  /** a folder created while running may have files already, written before it was watched */
+  private void newUser(WatchService ws, Path dir) throws IOException {
+    if (!watchUser(ws, dir)) return;
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        onChange(dir.getFileName().toString(), p.getFileName(), p, ENTRY_CREATE);
+      }
+    }
+  }
+
+  private void onChange(String user, Path rel, Path p, WatchEvent.Kind<?> kind) {
+    String name = rel.toString();
+    if (name.startsWith(".")) return; // .trash
+    String id = user + "/" + name;
+    try {
+      if (kind != ENTRY_DELETE && Files.isRegularFile(p)) {
+        FileMeta meta = repo.findById(id).orElseGet(FileMeta::new);
+        if (describes(meta, p)) return; // already recorded by whoever wrote it
+        int nextVersion = meta.getId()==null ? 1 : (meta.getVersion()+1);
+        // one read for hash, size and type
+        ContentProbe probe = new ContentProbe();
+        try (InputStream in = probe.wrap(Files.newInputStream(p))) {
+          in.transferTo(OutputStream.nullOutputStream());
+        }
+        meta.setId(id);
+        meta.setName(name);
+        meta.setSize(probe.size());
+        meta.setMime(probe.mimeType(name));
+        meta.setSha256(probe.sha256());
+        meta.setVersion(nextVersion);
+        if (meta.getCreatedBy()==null) meta.setCreatedBy(user);
+        repo.save(meta);
+      } else if (kind == ENTRY_DELETE) {
+        repo.deleteById(id);
+      }
+    } catch (Exception e) {
+      log.warn("Error processing file system event for {}: {}", id, e.getMessage());
+    }
+  }
+
+  /** true if {@code meta} was saved after the file's last change and has its size */
+  private static boolean describes(FileMeta meta, Path p) throws IOException {
+    return meta.getSha256() != null && meta.getUpdatedAt() != null
+        && meta.getSize() == Files.size(p)
+        && !meta.getUpdatedAt().isBefore(Files.getLastModifiedTime(p).toInstant());
+  }
 }
@@ -2,7 +2,7 @@ package dropbox.rest;
 
 import dropbox.rest.meta.FileMeta;
 import dropbox.rest.meta.FileMetaRepo;
-import dropbox.rest.util.HashUtil;
+import dropbox.rest.util.ContentProbe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -114,16 +114,20 @@ public class FileController {
     if (!target.startsWith(base)) return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Forbidden");
     if (Files.exists(target)) return ResponseEntity.status(HttpStatus.CONFLICT).body("exists");
 
-    Files.copy(file.getInputStream(), target, StandardCopyOption.REPLACE_EXISTING);
+    // hash, size and type are taken on the way in, so the file isn't read back
+    ContentProbe probe = new ContentProbe();
+    try (var in = probe.wrap(file.getInputStream())) {
+      Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+    }
 
     // update metadata
     var meta = repo.findById(principal.getName()+"/"+clean).orElse(new FileMeta());
     meta.setId(principal.getName()+"/"+clean);
     meta.setName(clean);
     meta.setCreatedBy(principal.getName());
-    meta.setSize(Files.size(target));
-    meta.setMime(Files.probeContentType(target));
-    meta.setSha256(HashUtil.sha256(target));
+    meta.setSize(probe.size());
+    meta.setMime(probe.mimeType(clean));
+    meta.setSha256(probe.sha256());
     meta.setVersion(meta.getVersion()==0?1:meta.getVersion()+1);
     repo.save(meta);
 
@@ -2,8 +2,10 @@ package dropbox.rest;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class RestApp {
   public static void main(String[] args) {
     SpringApplication.run(RestApp.class, args);
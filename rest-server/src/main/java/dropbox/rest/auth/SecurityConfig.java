@@ -41,6 +41,9 @@ public class SecurityConfig {
         // public share links
         .requestMatchers("/d/**").permitAll()
 
+        // error dispatch, so a 400/404/409 from a controller isn't turned into a 403
+        .requestMatchers("/error").permitAll()
+
         // logs — choose ONE approach:
         // A) dev-easy: everything under /api/logs is public
         .requestMatchers("/api/logs/**").permitAll()
@@ -53,6 +56,7 @@ public class SecurityConfig {
 
         // v2 file API
         .requestMatchers("/api/v2/files/**").authenticated()
+        .requestMatchers("/api/v2/uploads/**").authenticated()
 
         // admin
         .requestMatchers("/api/admin/**").hasRole("ADMIN")
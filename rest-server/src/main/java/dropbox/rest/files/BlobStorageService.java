@@ -0,0 +1,173 @@
+package dropbox.rest.files;
+
+import dropbox.rest.util.ContentProbe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Version contents stored by SHA-256 under {@code <base>/.blobs/ab/abcdef…}, so uploading the
+ * same bytes again only costs the upload. A blob is referenced by every {@link FileVersion}
+ * with its digest, and {@link #collectGarbage()} deletes the ones nothing references any more.
+ * Chunked uploads are assembled in {@code .blobs/uploads}, on the same disk, so committing one
+ * is a rename.
+ * <p>
+ * Older versions keep their own {@code .versions/} copies and are never touched here.
+ */
+@Service
+public class BlobStorageService implements BlobStore {
+    private static final Logger log = LoggerFactory.getLogger(BlobStorageService.class);
+
+    private final FileVersionRepo versionRepo;
+    private final Path blobs;
+    private final Path tmp;
+    private final Path uploads;
+    private final Duration grace;
+
+    // a blob being handed out (stored or found) vs. one being collected
+    private final ReentrantReadWriteLock gcLock = new ReentrantReadWriteLock();
+    // SHA-256 -> when it was last handed out: the GC's grace period counts from there. Kept
+    // apart from the file, whose mtime is the content's and stays as it was first stored.
+    private final Map<String, Long> handedOut = new ConcurrentHashMap<>();
+
+    public BlobStorageService(FileVersionRepo versionRepo,
+                              @Value("${storage.base-dir:server/Files}") String dir,
+                              @Value("${storage.blob-gc-grace-ms:3600000}") long graceMs) {
+        this.versionRepo = versionRepo;
+        this.blobs = Paths.get(dir).toAbsolutePath().normalize().resolve(".blobs");
+        this.tmp = blobs.resolve("tmp");
+        this.uploads = blobs.resolve("uploads");
+        this.grace = Duration.ofMillis(graceMs);
+    }
+
+    @Override
+    public Blob putBlob(InputStream in) throws Exception {
+        Files.createDirectories(tmp);
+        Path part = tmp.resolve(UUID.randomUUID() + ".part");
+        try {
+            // hash, size and type in the same pass as the write
+            ContentProbe probe = new ContentProbe();
+            try (InputStream pin = probe.wrap(in)) {
+                Files.copy(pin, part);
+            }
+            return store(part, probe);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    @Override
+    public Blob putBlob(Path staged) throws Exception {
+        if (!staged.startsWith(uploads)) throw new IllegalArgumentException("not a staging file: " + staged);
+        // the chunks came in any order, so this one read is the only way to hash the whole file
+        ContentProbe probe = new ContentProbe();
+        try (FileChannel ch = FileChannel.open(staged, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                probe.update(buf);
+                buf.clear();
+            }
+        }
+        return putBlob(staged, probe);
+    }
+
+    @Override
+    public Blob putBlob(Path staged, ContentProbe probe) throws Exception {
+        if (!staged.startsWith(uploads)) throw new IllegalArgumentException("not a staging file: " + staged);
+        try {
+            return store(staged, probe);
+        } finally {
+            Files.deleteIfExists(staged); // left over only when the content was already stored
+        }
+    }
+
+    @Override
+    public Path stagingPath(String uploadId) {
+        Path p = uploads.resolve(uploadId + ".part").normalize();
+        if (!p.getParent().equals(uploads)) throw new SecurityException("bad upload id");
+        return p;
+    }
+
+    /** moves {@code file} to its blob path, unless that blob exists already */
+    private Blob store(Path file, ContentProbe probe) throws IOException {
+        String sha256 = probe.sha256();
+        Path target = blobPath(sha256);
+        gcLock.readLock().lock();
+        try {
+            if (!Files.exists(target)) {
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            // so a collection can't take it before its version is saved
+            handedOut.put(sha256, System.currentTimeMillis());
+        } finally {
+            gcLock.readLock().unlock();
+        }
+        return new Blob(sha256, probe.size(), target, probe.sniffedType());
+    }
+
+    /**
+     * Deletes the blobs that no version refers to, and staging files left by uploads that
+     * never finished. A blob handed out within the grace period is left alone: its version may
+     * not have been committed yet. (Nor may it after a restart, but then the request that would
+     * have saved it is gone too.)
+     * @return the number of blobs deleted
+     */
+    @Scheduled(fixedDelayString = "${storage.blob-gc-interval-ms:3600000}",
+               initialDelayString = "${storage.blob-gc-initial-delay-ms:60000}")
+    public int collectGarbage() {
+        if (!Files.isDirectory(blobs)) return 0;
+        long cutoff = System.currentTimeMillis() - grace.toMillis();
+        handedOut.values().removeIf(at -> at < cutoff);
+        int deleted = 0;
+        long freed = 0;
+        try (Stream<Path> all = Files.walk(blobs, 2)) {
+            for (Path p : (Iterable<Path>) all.filter(Files::isRegularFile)::iterator) {
+                if (p.startsWith(uploads)) continue; // the upload sessions expire those
+                try {
+                    if (p.startsWith(tmp)) {
+                        if (Files.getLastModifiedTime(p).toMillis() < cutoff) Files.deleteIfExists(p);
+                        continue;
+                    }
+                    gcLock.writeLock().lock();
+                    try {
+                        String sha256 = p.getFileName().toString();
+                        if (handedOut.containsKey(sha256)) continue;
+                        if (versionRepo.countBySha256(sha256) > 0) continue;
+                        long size = Files.size(p);
+                        Files.delete(p);
+                        deleted++;
+                        freed += size;
+                    } finally {
+                        gcLock.writeLock().unlock();
+                    }
+                } catch (IOException e) {
+                    log.warn("Blob GC skipped {}: {}", p, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Blob GC failed: {}", e.getMessage());
+        }
+        if (deleted > 0) log.info("Blob GC deleted {} unreferenced blobs ({} bytes)", deleted, freed);
+        return deleted;
+    }
+
+    private Path blobPath(String sha256) {
+        return blobs.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+}
@@ -0,0 +1,34 @@
+package dropbox.rest.files;
+
+import dropbox.rest.util.ContentProbe;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/** Version contents stored once per SHA-256; see {@link BlobStorageService}. */
+public interface BlobStore {
+
+    /**
+     * Content stored under its SHA-256 (lower-case hex).
+     * {@code sniffedType} is the type told by its first bytes, or null.
+     */
+    record Blob(String sha256, long size, Path path, String sniffedType) {}
+
+    /**
+     * Store content under its SHA-256, hashing it while it is written. If the same content is
+     * already stored, the new copy is dropped and the existing blob returned.
+     */
+    Blob putBlob(InputStream in) throws Exception;
+
+    /** Like {@link #putBlob(InputStream)} for a file from {@link #stagingPath}: it is moved, not copied. */
+    Blob putBlob(Path staged) throws Exception;
+
+    /**
+     * Like {@link #putBlob(Path)} for a file whose bytes were all fed to {@code probe} as it was
+     * written, so it isn't read back to be hashed.
+     */
+    Blob putBlob(Path staged, ContentProbe probe) throws Exception;
+
+    /** Where a chunked upload is assembled; the file stays until it is passed to {@link #putBlob(Path)} or deleted. */
+    Path stagingPath(String uploadId);
+}
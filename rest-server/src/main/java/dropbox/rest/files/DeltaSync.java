@@ -0,0 +1,162 @@
+package dropbox.rest.files;
+
+import dropbox.rest.util.ContentProbe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * rsync-style delta uploads: the client gets the signature of a version's blocks, finds
+ * which of them it still has (sliding a rolling checksum over its copy), and sends only the
+ * rest. All numbers are big-endian.
+ * <pre>
+ * signature  int32 versionNo, int32 blockSize, int64 fileSize,
+ *            then per block: int32 weak checksum, 16 bytes strong checksum
+ * delta      a sequence of
+ *              'C' int32 firstBlock int32 blockCount   copy blocks of the base version
+ *              'L' int32 length, bytes                 literal data
+ *            ending with 'E'
+ * </pre>
+ * The weak checksum is rsync's: {@code a = Σ x[i]}, {@code b = Σ (len - i) * x[i]}, both mod
+ * 2^16, as {@code a | b << 16}, with the bytes unsigned. The strong checksum is the first 16
+ * bytes of the block's SHA-256. The last block may be short.
+ */
+final class DeltaSync {
+
+    static final int MIN_BLOCK = 512;
+    static final int MAX_BLOCK = 1 << 20;
+    private static final int STRONG_LEN = 16;
+    private static final int MAX_LITERAL = 16 << 20;
+
+    private DeltaSync() {}
+
+    /** about √size, as rsync picks it, rounded to a power of two between 2 KiB and 128 KiB */
+    static int defaultBlockSize(long size) {
+        long root = (long) Math.sqrt((double) size);
+        int bs = 2048;
+        while (bs < root && bs < 128 * 1024) bs <<= 1;
+        return bs;
+    }
+
+    static int weak(byte[] b, int off, int len) {
+        int a = 0, s = 0;
+        for (int i = 0; i < len; i++) {
+            int x = b[off + i] & 0xff;
+            a += x;
+            s += (len - i) * x;
+        }
+        return (a & 0xffff) | (s << 16);
+    }
+
+    static void writeSignature(Path file, int versionNo, int blockSize, OutputStream out) throws IOException {
+        MessageDigest sha = sha256();
+        DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            d.writeInt(versionNo);
+            d.writeInt(blockSize);
+            d.writeLong(size);
+            ByteBuffer buf = ByteBuffer.allocate(blockSize);
+            for (long pos = 0; pos < size; pos += blockSize) {
+                buf.clear();
+                while (buf.hasRemaining() && ch.read(buf, pos + buf.position()) > 0) { }
+                int n = buf.position();
+                d.writeInt(weak(buf.array(), 0, n));
+                sha.update(buf.array(), 0, n);
+                d.write(sha.digest(), 0, STRONG_LEN);
+            }
+        }
+        d.flush();
+    }
+
+    /**
+     * Builds the new file in {@code target} from the blocks of {@code base} and the literal data
+     * of {@code delta}. Every byte written, copied or literal, is also fed to {@code probe}, so
+     * the result is hashed without being read back; that is why copied blocks go through a
+     * buffer rather than file to file with {@code transferTo}.
+     * @return bytes written to {@code target}
+     * @throws IllegalArgumentException if the delta is malformed, refers to blocks the base
+     *         doesn't have, or would produce more than {@code maxSize} bytes
+     */
+    static long apply(Path base, int blockSize, InputStream delta, Path target, long maxSize,
+                      ContentProbe probe) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta, 64 * 1024));
+        byte[] buf = new byte[64 * 1024];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        long written = 0;
+        try (FileChannel src = FileChannel.open(base, StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long baseSize = src.size();
+            long blocks = (baseSize + blockSize - 1) / blockSize;
+            for (;;) {
+                int op;
+                try {
+                    op = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    throw new IllegalArgumentException("delta ends without 'E'");
+                }
+                if (op == 'E') break;
+                if (op == 'C') {
+                    long first = in.readInt() & 0xffffffffL, count = in.readInt() & 0xffffffffL;
+                    if (count == 0 || first + count > blocks)
+                        throw new IllegalArgumentException("blocks " + first + "+" + count + " not in base (" + blocks + " blocks)");
+                    long from = first * blockSize;
+                    long len = Math.min(count * blockSize, baseSize - from);
+                    written = checked(written, len, maxSize);
+                    for (long done = 0; done < len; ) {
+                        bb.clear().limit((int) Math.min(buf.length, len - done));
+                        int n = src.read(bb, from + done);
+                        if (n <= 0) throw new IOException("base version shrank");
+                        probe.update(buf, 0, n);
+                        bb.flip();
+                        while (bb.hasRemaining()) dst.write(bb);
+                        done += n;
+                    }
+                } else if (op == 'L') {
+                    int len = in.readInt();
+                    if (len < 0 || len > MAX_LITERAL) throw new IllegalArgumentException("bad literal length " + len);
+                    written = checked(written, len, maxSize);
+                    for (int left = len; left > 0; ) {
+                        int n = in.read(buf, 0, Math.min(buf.length, left));
+                        if (n < 0) throw new IllegalArgumentException("delta ends inside a literal");
+                        probe.update(buf, 0, n);
+                        bb.clear().limit(n);
+                        while (bb.hasRemaining()) dst.write(bb);
+                        left -= n;
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown delta op " + op);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("delta truncated");
+        }
+        return written;
+    }
+
+    private static long checked(long written, long more, long maxSize) {
+        if (written + more > maxSize) throw new IllegalArgumentException("result larger than " + maxSize + " bytes");
+        return written + more;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
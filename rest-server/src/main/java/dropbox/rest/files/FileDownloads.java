@@ -0,0 +1,189 @@
+package dropbox.rest.files;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes a stored file to an HTTP response straight from disk, so a download never holds the
+ * file in memory. Supports {@code Range} (one range as a 206, several as multipart/byteranges),
+ * {@code If-Range}, and {@code If-None-Match}/{@code If-Modified-Since} against the version's
+ * SHA-256 as the ETag and its creation time as Last-Modified.
+ * <p>
+ * When the response is one contiguous piece and Tomcat offers sendfile, the connector sends
+ * it from the file itself and nothing is copied through the JVM.
+ */
+final class FileDownloads {
+
+    // Tomcat's sendfile request attributes (org.apache.coyote.Constants)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileDownloads() {}
+
+    /**
+     * What was sent. FULL is any response that starts at byte 0 (a player's first
+     * {@code bytes=0-} included), so a caller can count downloads without counting every seek.
+     */
+    enum Outcome { FULL, PARTIAL, NOT_MODIFIED, UNSATISFIABLE }
+
+    /**
+     * @param sha256      hex digest of the file, the ETag; may be null when it isn't known
+     * @param created     when the version was saved, the Last-Modified (the file may be older or
+     *                    newer: versions with the same content share it); null for the file's mtime
+     * @param fileName    offered to the browser in Content-Disposition
+     * @param contentType null for application/octet-stream
+     */
+    static Outcome send(HttpServletRequest req, HttpServletResponse res, Path file, String sha256,
+                        Instant created, String fileName, MediaType contentType) throws IOException {
+        long length = Files.size(file);
+        if (created == null) created = Files.getLastModifiedTime(file).toInstant();
+        long lastModified = created.getEpochSecond() * 1000; // HTTP dates are whole seconds
+        String etag = (sha256 == null || sha256.isBlank()) ? null : "\"" + sha256 + "\"";
+        String type = (contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM).toString();
+
+        res.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (etag != null) res.setHeader(HttpHeaders.ETAG, etag);
+        res.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        // RFC 5987 encoding, so any file name survives the header
+        String encodedName = URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20");
+        res.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedName);
+
+        if (notModified(req, etag, lastModified)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return Outcome.NOT_MODIFIED;
+        }
+
+        List<HttpRange> ranges = List.of();
+        String rangeHeader = req.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && rangeStillValid(req, etag, lastModified)) {
+            try {
+                ranges = HttpRange.parseRanges(rangeHeader);
+                long total = 0;
+                for (HttpRange r : ranges) {
+                    long start = r.getRangeStart(length), end = r.getRangeEnd(length);
+                    if (start >= length || end < start) throw new IllegalArgumentException("range outside the file");
+                    total += end - start + 1;
+                }
+                // same guard as Spring's own resource handling: overlapping ranges can't ask for more than the file
+                if (total > length && ranges.size() > 1) throw new IllegalArgumentException("ranges exceed the file");
+            } catch (IllegalArgumentException e) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return Outcome.UNSATISFIABLE;
+            }
+        }
+        boolean head = "HEAD".equals(req.getMethod());
+
+        if (ranges.isEmpty()) {
+            res.setStatus(HttpServletResponse.SC_OK);
+            res.setContentType(type);
+            res.setContentLengthLong(length);
+            if (!head) sendPiece(req, res, file, 0, length);
+            return Outcome.FULL;
+        }
+
+        if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            res.setContentType(type);
+            res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            res.setContentLengthLong(end - start + 1);
+            if (!head) sendPiece(req, res, file, start, end - start + 1);
+            return start == 0 ? Outcome.FULL : Outcome.PARTIAL;
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        res.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (head) return Outcome.PARTIAL;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            OutputStream out = res.getOutputStream();
+            WritableByteChannel sink = Channels.newChannel(out);
+            for (HttpRange r : ranges) {
+                long start = r.getRangeStart(length), end = r.getRangeEnd(length);
+                out.write(("\r\n--" + boundary + "\r\n"
+                        + HttpHeaders.CONTENT_TYPE + ": " + type + "\r\n"
+                        + HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                transfer(ch, start, end - start + 1, sink);
+            }
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        return Outcome.PARTIAL;
+    }
+
+    /** If-None-Match wins over If-Modified-Since, as in RFC 9110 */
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String inm = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (inm != null) {
+            if (etag == null) return false;
+            for (String t : inm.split(",")) {
+                t = t.trim();
+                if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) return true;
+            }
+            return false;
+        }
+        long ims = dateHeader(req, HttpHeaders.IF_MODIFIED_SINCE);
+        return ims >= 0 && lastModified <= ims;
+    }
+
+    /** If-Range: the Range only applies if the client's copy is still this file (strong match only) */
+    private static boolean rangeStillValid(HttpServletRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+        return dateHeader(req, HttpHeaders.IF_RANGE) == lastModified;
+    }
+
+    private static long dateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1; // not a date: the condition is ignored
+        }
+    }
+
+    /** one contiguous piece: by sendfile if the connector can, else copied through a channel */
+    private static void sendPiece(HttpServletRequest req, HttpServletResponse res, Path file,
+                                  long start, long count) throws IOException {
+        if (count > 0 && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORTED))) {
+            req.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            req.setAttribute(SENDFILE_START, start);
+            req.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(ch, start, count, Channels.newChannel(res.getOutputStream()));
+        }
+    }
+
+    private static void transfer(FileChannel ch, long start, long count, WritableByteChannel sink) throws IOException {
+        long pos = start, end = start + count;
+        while (pos < end) {
+            long n = ch.transferTo(pos, end - pos, sink);
+            if (n <= 0) throw new IOException("file shrank while being sent");
+            pos += n;
+        }
+    }
+}
@@ -7,7 +7,8 @@ import java.time.Instant;
 @Entity
 @Table(name="file_versions", indexes = {
         @Index(name="ix_ver_entry", columnList = "fileEntry_id"),
-        @Index(name="ix_ver_entry_no", columnList = "fileEntry_id,versionNo", unique = true)
+        @Index(name="ix_ver_entry_no", columnList = "fileEntry_id,versionNo", unique = true),
+        @Index(name="ix_ver_sha256", columnList = "sha256")
 })
 @com.fasterxml.jackson.annotation.JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class FileVersion {
@@ -27,6 +28,9 @@ public class FileVersion {
     @Column(length=200)
     private String sha256;
 
+    @Column(length=120)
+    private String mime;
+
     @Column(nullable=false, length=4096)
     private String storagePath;
 
@@ -46,6 +50,8 @@ public class FileVersion {
     public void setSizeBytes(long sizeBytes) { this.sizeBytes = sizeBytes; }
     public String getSha256() { return sha256; }
     public void setSha256(String sha256) { this.sha256 = sha256; }
+    public String getMime() { return mime; }
+    public void setMime(String mime) { this.mime = mime; }
     public String getStoragePath() { return storagePath; }
     public void setStoragePath(String storagePath) { this.storagePath = storagePath; }
     public String getCreatedBy() { return createdBy; }
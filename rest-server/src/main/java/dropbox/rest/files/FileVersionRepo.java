@@ -7,4 +7,6 @@ import java.util.Optional;
 public interface FileVersionRepo extends JpaRepository<FileVersion, Long> {
     List<FileVersion> findByFileEntryOrderByVersionNoDesc(FileEntry entry);
     Optional<FileVersion> findByFileEntryAndVersionNo(FileEntry entry, int versionNo);
+    /** references to a blob, for its garbage collection */
+    long countBySha256(String sha256);
 }
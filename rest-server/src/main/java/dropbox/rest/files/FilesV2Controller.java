@@ -1,5 +1,8 @@
 package dropbox.rest.files;
 
+import dropbox.rest.util.ContentProbe;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.*;
@@ -8,7 +11,6 @@ import org.springframework.web.multipart.MultipartFile;
 import org.springframework.util.StringUtils;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.Principal;
 import java.time.Instant;
@@ -23,12 +25,12 @@ public class FilesV2Controller {
     private static final Logger log = LoggerFactory.getLogger(FilesV2Controller.class);
     private final VersioningService versioning;
     private final FileEntryRepo entryRepo;
-    private final StorageService storage;
+    private final BlobStore blobs;
     private final ShareLinkService shareLinks;
 
     public FilesV2Controller(VersioningService versioning, FileEntryRepo entryRepo,
-                             StorageService storage, ShareLinkService shareLinks) {
-        this.versioning = versioning; this.entryRepo = entryRepo; this.storage = storage; this.shareLinks = shareLinks;
+                             BlobStore blobs, ShareLinkService shareLinks) {
+        this.versioning = versioning; this.entryRepo = entryRepo; this.blobs = blobs; this.shareLinks = shareLinks;
     }
 
     @GetMapping
@@ -98,26 +100,72 @@ public class FilesV2Controller {
     }
 
     @GetMapping("/{name:.+}")
-    public ResponseEntity<byte[]> download(Principal principal,
-                                           @PathVariable("name") String name,
-                                           @RequestParam(name="version", required=false) Integer versionNo) throws Exception {
+    public void download(Principal principal,
+                         @PathVariable("name") String name,
+                         @RequestParam(name="version", required=false) Integer versionNo,
+                         HttpServletRequest request, HttpServletResponse response) throws Exception {
         var e = entryRepo.findByOwnerAndLogicalNameAndDeletedFalse(principal.getName(), name)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "not found"));
         var v = versioning.getVersion(e, versionNo);
         if (v==null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "version not found");
         Path p = Path.of(v.getStoragePath());
-        byte[] bytes = Files.readAllBytes(p);
 
-        String mime = Files.probeContentType(p);
-        MediaType mt = (mime!=null ? MediaType.parseMediaType(mime) : MediaType.APPLICATION_OCTET_STREAM);
+        // recorded at upload; versions from before that go by the name (blob paths have no extension)
+        String mime = v.getMime() != null ? v.getMime() : ContentProbe.mimeType(null, name);
+        MediaType mt = MediaType.parseMediaType(mime);
 
-        // Properly encode filename for Content-Disposition header
-        String encodedName = java.net.URLEncoder.encode(name, java.nio.charset.StandardCharsets.UTF_8).replace("+", "%20");
+        // streamed from disk, with Range / If-Range / ETag handled there
+        FileDownloads.send(request, response, p, v.getSha256(), v.getCreatedAt(), name, mt);
+    }
+
+    /** Block signature of a version, for a delta upload; binary, see {@link DeltaSync}. */
+    @GetMapping("/{name:.+}/signature")
+    public void signature(Principal principal, @PathVariable("name") String name,
+                          @RequestParam(name="version", required=false) Integer versionNo,
+                          @RequestParam(name="blockSize", required=false) Integer blockSize,
+                          HttpServletResponse response) throws Exception {
+        var e = entryRepo.findByOwnerAndLogicalNameAndDeletedFalse(principal.getName(), name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "not found"));
+        var v = versioning.getVersion(e, versionNo);
+        if (v==null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "version not found");
+        int bs = blockSize != null ? blockSize : DeltaSync.defaultBlockSize(v.getSizeBytes());
+        if (bs < DeltaSync.MIN_BLOCK || bs > DeltaSync.MAX_BLOCK)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "blockSize must be between " + DeltaSync.MIN_BLOCK + " and " + DeltaSync.MAX_BLOCK);
+
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        if (v.getSha256() != null) response.setHeader(HttpHeaders.ETAG, "\"" + v.getSha256() + "\"");
+        DeltaSync.writeSignature(Path.of(v.getStoragePath()), v.getVersionNo(), bs, response.getOutputStream());
+    }
+
+    /**
+     * New version from a delta against version {@code base}, made with the signature for
+     * {@code blockSize}. {@code sha256} of the whole new file is checked when given.
+     */
+    @PostMapping(path="/{name:.+}/delta", consumes=MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Map<String,Object> delta(Principal principal, @PathVariable("name") String name,
+                                    @RequestParam("base") int baseNo,
+                                    @RequestParam("blockSize") int blockSize,
+                                    @RequestParam(name="sha256", required=false) String sha256,
+                                    HttpServletRequest request) throws Exception {
+        var e = entryRepo.findByOwnerAndLogicalNameAndDeletedFalse(principal.getName(), name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "not found"));
+        var base = versioning.getVersion(e, baseNo);
+        if (base==null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "version not found");
+        if (blockSize < DeltaSync.MIN_BLOCK || blockSize > DeltaSync.MAX_BLOCK)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "bad blockSize");
 
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedName)
-                .contentType(mt)
-                .body(bytes);
+        BlobStore.Blob blob;
+        try {
+            blob = versioning.assembleFromDelta(base, blockSize, request.getInputStream(), sha256);
+        } catch (IllegalArgumentException ex) {
+            log.warn("Delta upload of {} rejected: {}", name, ex.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage());
+        }
+        var v = versioning.createVersion(principal.getName(), name, principal.getName(), blob);
+        log.info("Delta upload - User: {}, File: {}, Version: {} (from v{})",
+                principal.getName(), name, v.getVersionNo(), baseNo);
+        return Map.of("ok", true, "name", name, "version", v.getVersionNo(), "size", v.getSizeBytes());
     }
 
     @DeleteMapping("/{name:.+}")
@@ -1,11 +1,10 @@
 package dropbox.rest.files;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 
@@ -20,22 +19,24 @@ public class ShareDownloadController {
     }
 
     @GetMapping("/{code}")
-    public ResponseEntity<Resource> download(@PathVariable String code) throws Exception {
+    public void download(@PathVariable String code,
+                         HttpServletRequest request, HttpServletResponse response) throws Exception {
         var opt = links.findByCode(code);
-        if (opt.isEmpty()) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        if (opt.isEmpty()) { response.setStatus(HttpStatus.NOT_FOUND.value()); return; }
         var s = opt.get();
         if (s.isRevoked() || s.getExpiresAt().isBefore(Instant.now())) {
-            return ResponseEntity.status(HttpStatus.GONE).build();
+            response.setStatus(HttpStatus.GONE.value());
+            return;
         }
         var entry = s.getFileEntry();
         var v = versioning.getVersion(entry, s.getVersionNo());
-        if (v == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        if (v == null) { response.setStatus(HttpStatus.NOT_FOUND.value()); return; }
         Path p = Path.of(v.getStoragePath());
-        byte[] bytes = Files.readAllBytes(p);
-        links.save( new ShareLinkService(links).consume(s) ); // minor side-effect update
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\""+entry.getLogicalName()+"\"")
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(new ByteArrayResource(bytes));
+        var sent = FileDownloads.send(request, response, p, v.getSha256(), v.getCreatedAt(), entry.getLogicalName(),
+                MediaType.APPLICATION_OCTET_STREAM);
+        // one download per response from byte 0: resuming or seeking doesn't use up the link
+        if (sent == FileDownloads.Outcome.FULL && !"HEAD".equals(request.getMethod())) {
+            links.save( new ShareLinkService(links).consume(s) ); // minor side-effect update
+        }
     }
 }
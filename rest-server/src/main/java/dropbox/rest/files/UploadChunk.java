@@ -0,0 +1,31 @@
+package dropbox.rest.files;
+
+import jakarta.persistence.*;
+
+/** A chunk of an {@link UploadSession} that was received and matched its checksum. */
+@Entity
+@Table(name="upload_chunks", indexes = {
+        @Index(name="ix_chunk_session_no", columnList = "sessionId,chunkNo", unique = true)
+})
+public class UploadChunk {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable=false, length=36)
+    private String sessionId;
+
+    @Column(nullable=false)
+    private int chunkNo;
+
+    @Column(nullable=false, length=64)
+    private String sha256;
+
+    // getters/setters
+    public Long getId() { return id; }
+    public String getSessionId() { return sessionId; }
+    public void setSessionId(String sessionId) { this.sessionId = sessionId; }
+    public int getChunkNo() { return chunkNo; }
+    public void setChunkNo(int chunkNo) { this.chunkNo = chunkNo; }
+    public String getSha256() { return sha256; }
+    public void setSha256(String sha256) { this.sha256 = sha256; }
+}
@@ -0,0 +1,14 @@
+package dropbox.rest.files;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.List;
+import java.util.Optional;
+
+public interface UploadChunkRepo extends JpaRepository<UploadChunk, Long> {
+    List<UploadChunk> findBySessionIdOrderByChunkNoAsc(String sessionId);
+    Optional<UploadChunk> findBySessionIdAndChunkNo(String sessionId, int chunkNo);
+    long countBySessionId(String sessionId);
+    @Transactional
+    void deleteBySessionId(String sessionId);
+}
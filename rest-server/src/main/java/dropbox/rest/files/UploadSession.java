@@ -0,0 +1,59 @@
+package dropbox.rest.files;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/** A chunked upload in progress; its chunks are written into one staging file. */
+@Entity
+@Table(name="upload_sessions", indexes = {
+        @Index(name="ix_upload_owner", columnList = "owner"),
+        @Index(name="ix_upload_expires", columnList = "expiresAt")
+})
+public class UploadSession {
+    @Id
+    @Column(length=36)
+    private String id;
+
+    @Column(nullable=false, length=120)
+    private String owner;
+
+    @Column(nullable=false, length=255)
+    private String logicalName;
+
+    @Column(nullable=false)
+    private long sizeBytes;
+
+    @Column(nullable=false)
+    private int chunkSize;
+
+    @Column(nullable=false)
+    private int chunkCount;
+
+    @Column(nullable=false, updatable=false)
+    private Instant createdAt = Instant.now();
+
+    @Column(nullable=false)
+    private Instant expiresAt;
+
+    // getters/setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+    public String getLogicalName() { return logicalName; }
+    public void setLogicalName(String logicalName) { this.logicalName = logicalName; }
+    public long getSizeBytes() { return sizeBytes; }
+    public void setSizeBytes(long sizeBytes) { this.sizeBytes = sizeBytes; }
+    public int getChunkSize() { return chunkSize; }
+    public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
+    public int getChunkCount() { return chunkCount; }
+    public void setChunkCount(int chunkCount) { this.chunkCount = chunkCount; }
+    public Instant getCreatedAt() { return createdAt; }
+    public Instant getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(Instant expiresAt) { this.expiresAt = expiresAt; }
+
+    /** bytes in chunk {@code n}: chunkSize, except for the last one */
+    public long chunkLength(int n) {
+        return Math.min(chunkSize, sizeBytes - (long) n * chunkSize);
+    }
+}
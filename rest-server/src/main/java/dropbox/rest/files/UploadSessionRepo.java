@@ -0,0 +1,11 @@
+package dropbox.rest.files;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+public interface UploadSessionRepo extends JpaRepository<UploadSession, String> {
+    Optional<UploadSession> findByIdAndOwner(String id, String owner);
+    List<UploadSession> findByExpiresAtBefore(Instant t);
+}
@@ -0,0 +1,280 @@
+package dropbox.rest.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Chunked uploads: a session is opened with the file's size, its chunks are PUT in any order
+ * (and in parallel) straight into their place in a staging file, and the commit turns that file
+ * into a blob and a new {@link FileVersion}. Sessions and received chunks are kept in the
+ * database, so a client that restarts asks which chunks are missing and sends only those.
+ * <p>
+ * Chunk writes to a session share its lock; commit and abort take it alone and without
+ * waiting. So a commit never hashes a file that is still being written, and the loser of a
+ * race gets a 409 (busy) or a 404 (the session was committed or aborted in the meantime).
+ * The same chunk sent twice at once is refused with a 409 too, so two bodies never
+ * interleave in its place in the staging file.
+ */
+@Service
+public class UploadSessionService {
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final int MIN_CHUNK = 64 * 1024;
+
+    private final UploadSessionRepo sessions;
+    private final UploadChunkRepo chunks;
+    private final BlobStore blobs;
+    private final VersioningService versioning;
+    private final int defaultChunkSize;
+    private final int maxChunkSize;
+    private final long maxSize;
+    private final Duration ttl;
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    private final Set<String> chunksInFlight = ConcurrentHashMap.newKeySet(); // "<session id>/<chunk no>"
+
+    public UploadSessionService(UploadSessionRepo sessions, UploadChunkRepo chunks,
+                                BlobStore blobs, VersioningService versioning,
+                                @Value("${uploads.chunk-size:8388608}") int defaultChunkSize,
+                                @Value("${uploads.max-chunk-size:67108864}") int maxChunkSize,
+                                @Value("${uploads.max-size-bytes:10737418240}") long maxSize,
+                                @Value("${uploads.ttl-hours:24}") long ttlHours) {
+        this.sessions = sessions; this.chunks = chunks; this.blobs = blobs; this.versioning = versioning;
+        this.defaultChunkSize = defaultChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.maxSize = maxSize;
+        this.ttl = Duration.ofHours(ttlHours);
+    }
+
+    public UploadSession open(String owner, String logicalName, long size, Integer chunkSize) throws IOException {
+        if (logicalName == null || logicalName.isBlank())
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "name required");
+        if (size < 0 || size > maxSize)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size must be between 0 and " + maxSize);
+        int cs = chunkSize == null ? defaultChunkSize : chunkSize;
+        if (cs < MIN_CHUNK || cs > maxChunkSize)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "chunkSize must be between " + MIN_CHUNK + " and " + maxChunkSize);
+
+        UploadSession s = new UploadSession();
+        s.setId(UUID.randomUUID().toString());
+        s.setOwner(owner);
+        s.setLogicalName(StringUtils.cleanPath(logicalName));
+        s.setSizeBytes(size);
+        s.setChunkSize(cs);
+        s.setChunkCount((int) ((size + cs - 1) / cs));
+        s.setExpiresAt(Instant.now().plus(ttl));
+
+        Path staging = blobs.stagingPath(s.getId());
+        Files.createDirectories(staging.getParent());
+        try (RandomAccessFile f = new RandomAccessFile(staging.toFile(), "rw")) {
+            f.setLength(size); // sparse: chunks fill it in wherever they land
+        }
+        return sessions.save(s);
+    }
+
+    public UploadSession get(String owner, String id) {
+        return sessions.findByIdAndOwner(id, owner)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such upload"));
+    }
+
+    /**
+     * Writes chunk {@code n} at its offset, hashing it on the way. It only counts as received if
+     * it has exactly the chunk's length and its SHA-256 is {@code sha256}; sending a chunk again
+     * replaces it, but not while that chunk is still being written (409).
+     */
+    public void putChunk(String owner, String id, int n, String sha256, InputStream body) throws Exception {
+        UploadSession s = get(owner, id);
+        if (n < 0 || n >= s.getChunkCount())
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunk must be between 0 and " + (s.getChunkCount() - 1));
+        if (sha256 == null || sha256.isBlank())
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "X-Chunk-Sha256 required");
+
+        ReentrantReadWriteLock lock = lockOf(id);
+        if (!lock.readLock().tryLock())
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "upload is being committed or aborted");
+        try {
+            present(id, lock);
+            String key = id + "/" + n;
+            if (!chunksInFlight.add(key))
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "chunk " + n + " is already being sent");
+            try {
+                writeChunk(s, n, sha256, body);
+            } finally {
+                chunksInFlight.remove(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void writeChunk(UploadSession s, int n, String sha256, InputStream body) throws Exception {
+        String id = s.getId();
+        long length = s.chunkLength(n);
+        long offset = (long) n * s.getChunkSize();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        long written = 0;
+        byte[] buf = new byte[64 * 1024];
+        String actual;
+        try {
+            try (FileChannel ch = FileChannel.open(blobs.stagingPath(id), StandardOpenOption.WRITE)) {
+                int r;
+                while ((r = body.read(buf, 0, (int) Math.min(buf.length, length - written + 1))) > 0) {
+                    if (written + r > length)
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunk " + n + " is longer than " + length + " bytes");
+                    md.update(buf, 0, r);
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, r);
+                    while (bb.hasRemaining()) ch.write(bb, offset + written + bb.position());
+                    written += r;
+                }
+            }
+            if (written != length)
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunk " + n + " must be " + length + " bytes, got " + written);
+            actual = HexFormat.of().formatHex(md.digest());
+            if (!actual.equalsIgnoreCase(sha256.trim()))
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "checksum mismatch on chunk " + n);
+        } catch (Exception e) {
+            // whatever was there before has been overwritten, so the chunk has to come again
+            chunks.findBySessionIdAndChunkNo(id, n).ifPresent(chunks::delete);
+            throw e;
+        }
+
+        UploadChunk c = chunks.findBySessionIdAndChunkNo(id, n).orElseGet(UploadChunk::new);
+        c.setSessionId(id);
+        c.setChunkNo(n);
+        c.setSha256(actual);
+        chunks.save(c);
+        s.setExpiresAt(Instant.now().plus(ttl)); // a session lives as long as chunks keep coming
+        sessions.save(s);
+    }
+
+    /** the session as the client sees it, with the chunks still missing */
+    public Map<String,Object> status(UploadSession s) {
+        List<Integer> missing = new ArrayList<>();
+        boolean[] have = new boolean[s.getChunkCount()];
+        for (UploadChunk c : chunks.findBySessionIdOrderByChunkNoAsc(s.getId())) have[c.getChunkNo()] = true;
+        for (int i = 0; i < have.length; i++) if (!have[i]) missing.add(i);
+
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("id", s.getId());
+        m.put("name", s.getLogicalName());
+        m.put("size", s.getSizeBytes());
+        m.put("chunkSize", s.getChunkSize());
+        m.put("chunks", s.getChunkCount());
+        m.put("received", s.getChunkCount() - missing.size());
+        m.put("missing", missing);
+        m.put("expiresAt", s.getExpiresAt());
+        return m;
+    }
+
+    /**
+     * Once every chunk is in: the staging file becomes a blob and a new version of the file.
+     * @param sha256 SHA-256 the client computed for the whole file, or null to skip the check.
+     *               On a mismatch nothing is versioned and the upload is dropped: every chunk
+     *               matched its own checksum, so there is no telling which one to send again.
+     */
+    public FileVersion commit(String owner, String id, String sha256) throws Exception {
+        get(owner, id);
+        ReentrantReadWriteLock lock = claim(id);
+        try {
+            UploadSession s = present(id, lock); // a commit that got here first is done with it
+            long have = chunks.countBySessionId(id);
+            if (have < s.getChunkCount())
+                throw new ResponseStatusException(HttpStatus.CONFLICT, (s.getChunkCount() - have) + " chunks missing");
+
+            var blob = blobs.putBlob(blobs.stagingPath(id));
+            if (sha256 != null && !sha256.isBlank() && !sha256.trim().equalsIgnoreCase(blob.sha256())) {
+                forget(s); // the staging file is gone already; the blob is left for the garbage collection
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "assembled file has SHA-256 " + blob.sha256() + "; the upload was dropped");
+            }
+            FileVersion v = versioning.createVersion(owner, s.getLogicalName(), owner, blob);
+            forget(s);
+            return v;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void abort(String owner, String id) throws IOException {
+        get(owner, id);
+        ReentrantReadWriteLock lock = claim(id);
+        try {
+            UploadSession s = present(id, lock);
+            Files.deleteIfExists(blobs.stagingPath(id));
+            forget(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${uploads.cleanup-interval-ms:600000}")
+    public void dropExpired() {
+        for (UploadSession s : sessions.findByExpiresAtBefore(Instant.now())) {
+            ReentrantReadWriteLock lock = lockOf(s.getId());
+            if (!lock.writeLock().tryLock()) continue; // chunks are still coming after all
+            try {
+                Files.deleteIfExists(blobs.stagingPath(s.getId()));
+                forget(s);
+                log.info("Upload {} of {} expired", s.getId(), s.getLogicalName());
+            } catch (Exception e) {
+                log.warn("Could not drop expired upload {}: {}", s.getId(), e.getMessage());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private ReentrantReadWriteLock lockOf(String id) {
+        return locks.computeIfAbsent(id, k -> new ReentrantReadWriteLock());
+    }
+
+    /** the session's lock, held alone; 409 if chunks are being written or another commit/abort runs */
+    private ReentrantReadWriteLock claim(String id) {
+        ReentrantReadWriteLock lock = lockOf(id);
+        if (!lock.writeLock().tryLock())
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "upload is busy: chunks are being written or it is being committed");
+        return lock;
+    }
+
+    /** re-reads the session under its lock; 404 if it was committed or aborted while we waited */
+    private UploadSession present(String id, ReentrantReadWriteLock lock) {
+        return sessions.findById(id).orElseThrow(() -> {
+            locks.remove(id, lock);
+            return new ResponseStatusException(HttpStatus.NOT_FOUND, "no such upload");
+        });
+    }
+
+    /** called with the session's lock held alone */
+    private void forget(UploadSession s) {
+        chunks.deleteBySessionId(s.getId());
+        sessions.delete(s);
+        locks.remove(s.getId());
+    }
+}
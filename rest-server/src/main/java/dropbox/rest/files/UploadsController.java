@@ -0,0 +1,75 @@
+package dropbox.rest.files;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.security.Principal;
+import java.util.Map;
+
+/**
+ * Resumable uploads for files too big for one multipart request:
+ * <pre>
+ * POST   /api/v2/uploads                {"name", "size", "chunkSize"?}  -> session
+ * PUT    /api/v2/uploads/{id}/chunks/{n} application/octet-stream, X-Chunk-Sha256
+ * GET    /api/v2/uploads/{id}           which chunks are still missing
+ * POST   /api/v2/uploads/{id}/commit    ?sha256= of the whole file, checked when given
+ *                                       -> same reply as /api/v2/files/upload
+ * DELETE /api/v2/uploads/{id}
+ * </pre>
+ * A chunk sent while the upload is being committed or while the same chunk is still coming,
+ * or a second commit, gets a 409, or a 404 once the upload is gone.
+ */
+@RestController
+@RequestMapping("/api/v2/uploads")
+public class UploadsController {
+    private final UploadSessionService uploads;
+
+    public UploadsController(UploadSessionService uploads) {
+        this.uploads = uploads;
+    }
+
+    @PostMapping
+    public Map<String,Object> open(Principal principal, @RequestBody Map<String,Object> req) throws Exception {
+        // the body is untyped JSON: a wrong type is the client's mistake, not a ClassCastException
+        if (!(req.get("name") instanceof String name))
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "name required");
+        if (!(req.get("size") instanceof Integer || req.get("size") instanceof Long))
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size required, a whole number of bytes");
+        Object cs = req.get("chunkSize");
+        if (cs != null && !(cs instanceof Integer))
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunkSize must be a whole number of bytes");
+        long size = ((Number) req.get("size")).longValue();
+        var s = uploads.open(principal.getName(), name, size, (Integer) cs);
+        return uploads.status(s);
+    }
+
+    @GetMapping("/{id}")
+    public Map<String,Object> status(Principal principal, @PathVariable("id") String id) {
+        return uploads.status(uploads.get(principal.getName(), id));
+    }
+
+    @PutMapping(path="/{id}/chunks/{n}", consumes=MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Map<String,Object> chunk(Principal principal, @PathVariable("id") String id, @PathVariable("n") int n,
+                                    @RequestHeader(name="X-Chunk-Sha256", required=false) String sha256,
+                                    HttpServletRequest request) throws Exception {
+        uploads.putChunk(principal.getName(), id, n, sha256, request.getInputStream());
+        return Map.of("ok", true, "chunk", n);
+    }
+
+    @PostMapping("/{id}/commit")
+    public Map<String,Object> commit(Principal principal, @PathVariable("id") String id,
+                                     @RequestParam(name="sha256", required=false) String sha256) throws Exception {
+        var v = uploads.commit(principal.getName(), id, sha256);
+        return Map.of("ok", true, "name", v.getFileEntry().getLogicalName(), "version", v.getVersionNo(),
+                "size", v.getSizeBytes());
+    }
+
+    @DeleteMapping("/{id}")
+    public Map<String,Object> abort(Principal principal, @PathVariable("id") String id) throws Exception {
+        uploads.abort(principal.getName(), id);
+        return Map.of("ok", true);
+    }
+}
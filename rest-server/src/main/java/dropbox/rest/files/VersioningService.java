@@ -1,5 +1,7 @@
 package dropbox.rest.files;
 
+import dropbox.rest.util.ContentProbe;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -7,21 +9,32 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.UUID;
 
 @Service
 public class VersioningService {
     private final FileEntryRepo entryRepo;
     private final FileVersionRepo versionRepo;
-    private final StorageService storage;
+    private final BlobStore blobs;
+    private final long maxSize;
 
-    public VersioningService(FileEntryRepo entryRepo, FileVersionRepo versionRepo, StorageService storage) {
+    public VersioningService(FileEntryRepo entryRepo, FileVersionRepo versionRepo, BlobStore blobs,
+                             @Value("${uploads.max-size-bytes:10737418240}") long maxSize) {
         this.entryRepo = entryRepo;
         this.versionRepo = versionRepo;
-        this.storage = storage;
+        this.blobs = blobs;
+        this.maxSize = maxSize;
     }
 
     @Transactional
     public FileVersion createVersion(String owner, String logicalName, String createdBy, InputStream body) throws Exception {
+        // stored once per content: the same bytes uploaded again share one blob
+        return createVersion(owner, logicalName, createdBy, blobs.putBlob(body));
+    }
+
+    /** A new current version of {@code logicalName} with content already in the blob store. */
+    @Transactional
+    public FileVersion createVersion(String owner, String logicalName, String createdBy, BlobStore.Blob blob) {
         FileEntry entry = entryRepo.findByOwnerAndLogicalName(owner, logicalName).orElseGet(() -> {
             FileEntry e = new FileEntry();
             e.setOwner(owner);
@@ -32,19 +45,13 @@ public class VersioningService {
         int nextNo = versionRepo.findByFileEntryOrderByVersionNoDesc(entry).stream()
                 .mapToInt(FileVersion::getVersionNo).max().orElse(0) + 1;
 
-        String safeName = logicalName.replace('\\','/').replace("..","__");
-        String relPath = ".versions/" + safeName + ".v" + nextNo;
-
-        // ⬇️ change is here: save and get the on-disk Path back
-        Path p =storage.saveToPath(owner, relPath, body);
-
-        long size = Files.size(p);
-
         FileVersion v = new FileVersion();
         v.setFileEntry(entry);
         v.setVersionNo(nextNo);
-        v.setStoragePath(p.toString());
-        v.setSizeBytes(size);
+        v.setStoragePath(blob.path().toString());
+        v.setSizeBytes(blob.size());
+        v.setSha256(blob.sha256());
+        v.setMime(ContentProbe.mimeType(blob.sniffedType(), logicalName));
         v.setCreatedBy(createdBy);
         v = versionRepo.save(v);
 
@@ -53,6 +60,31 @@ public class VersioningService {
         return v;
     }
 
+    /**
+     * The content of a new version, built from the blocks of {@code base} plus the literal data
+     * of a delta (see {@link DeltaSync}), so only the changed blocks cross the network. The new
+     * file is still written out in full and stored as a blob of its own: blocks aren't shared
+     * between versions on disk. Pass the result to {@link #createVersion(String, String, String, BlobStore.Blob)}.
+     * @param expectedSha256 SHA-256 the client computed for the new file, or null to skip the check
+     */
+    public BlobStore.Blob assembleFromDelta(FileVersion base, int blockSize, InputStream delta,
+                                                 String expectedSha256) throws Exception {
+        Path staged = blobs.stagingPath("delta-" + UUID.randomUUID());
+        Files.createDirectories(staged.getParent());
+        BlobStore.Blob blob;
+        try {
+            ContentProbe probe = new ContentProbe();
+            DeltaSync.apply(Path.of(base.getStoragePath()), blockSize, delta, staged, maxSize, probe);
+            blob = blobs.putBlob(staged, probe);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+        // a mismatch leaves an unreferenced blob for the garbage collection
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(blob.sha256()))
+            throw new IllegalArgumentException("assembled file has SHA-256 " + blob.sha256());
+        return blob;
+    }
+
     public List<FileVersion> listVersions(FileEntry e){
         return versionRepo.findByFileEntryOrderByVersionNoDesc(e);
     }
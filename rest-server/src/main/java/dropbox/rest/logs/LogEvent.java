@@ -0,0 +1,13 @@
+package dropbox.rest.logs;
+
+/**
+ * One telemetry event as received from the TFTP server.
+ * {@code json} is serialized once on ingest and sent as is to every reader.
+ */
+record LogEvent(long ts, String event, String user, String json) {
+
+  /** @param who the signed-in user, or null for an anonymous caller */
+  boolean visibleTo(String who) {
+    return user.isEmpty() || user.equals(who); // events without a user (BCAST_*) are for everyone
+  }
+}
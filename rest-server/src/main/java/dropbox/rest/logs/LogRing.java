@@ -0,0 +1,36 @@
+package dropbox.rest.logs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/** the last {@code capacity} events; older ones are overwritten */
+final class LogRing {
+  private final LogEvent[] slots;
+  private long added;
+
+  LogRing(int capacity) {
+    this.slots = new LogEvent[Math.max(1, capacity)];
+  }
+
+  synchronized void add(LogEvent e) {
+    slots[(int) (added++ % slots.length)] = e;
+  }
+
+  /** @return up to {@code limit} of the newest events matching {@code filter}, oldest first */
+  synchronized List<LogEvent> recent(int limit, Predicate<LogEvent> filter) {
+    List<LogEvent> out = new ArrayList<>(Math.min(limit, slots.length));
+    long oldest = Math.max(0, added - slots.length);
+    for (long i = added - 1; i >= oldest && out.size() < limit; i--) {
+      LogEvent e = slots[(int) (i % slots.length)];
+      if (filter.test(e)) out.add(e);
+    }
+    Collections.reverse(out);
+    return out;
+  }
+
+  synchronized int size() { return (int) Math.min(added, slots.length); }
+
+  int capacity() { return slots.length; }
+}
@@ -0,0 +1,150 @@
+package dropbox.rest.logs;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Fans events out to the SSE subscribers of {@code /api/logs/stream}.
+ * <p>
+ * {@link #publish} never blocks the ingest thread: every subscriber has its own bounded queue,
+ * drained by a small sender pool. When a subscriber can't keep up its queue fills and new events
+ * are dropped for it alone; it gets a {@code dropped} event with the count once it catches up.
+ * A comment line every {@code telemetry.sse-heartbeat-ms} finds clients that went away.
+ */
+@Component
+public class LogStreamHub {
+  private static final Logger log = LoggerFactory.getLogger(LogStreamHub.class);
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final int queueSize;
+  private final ExecutorService senders;
+  private final ScheduledExecutorService heartbeat;
+
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  public LogStreamHub(@Value("${telemetry.subscriber-queue:1024}") int queueSize,
+                      @Value("${telemetry.sse-threads:2}") int threads,
+                      @Value("${telemetry.sse-heartbeat-ms:15000}") long heartbeatMs) {
+    this.queueSize = Math.max(1, queueSize);
+    this.senders = Executors.newFixedThreadPool(Math.max(1, threads), daemon("sse-sender"));
+    this.heartbeat = Executors.newSingleThreadScheduledExecutor(daemon("sse-heartbeat"));
+    heartbeat.scheduleAtFixedRate(() -> subscribers.forEach(Subscriber::ping),
+        heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static ThreadFactory daemon(String name) {
+    AtomicLong n = new AtomicLong();
+    return r -> {
+      Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /** @param timeoutMs 0 for none; the UI doesn't reconnect on its own */
+  SseEmitter subscribe(Predicate<LogEvent> filter, long timeoutMs) {
+    SseEmitter emitter = new SseEmitter(timeoutMs);
+    Subscriber s = new Subscriber(emitter, filter);
+    emitter.onCompletion(s::close);
+    emitter.onTimeout(s::close);
+    emitter.onError(err -> s.close());
+    subscribers.add(s);
+    return emitter;
+  }
+
+  void publish(LogEvent e) {
+    for (Subscriber s : subscribers) {
+      if (s.filter.test(e)) s.offer(e);
+    }
+  }
+
+  public int subscriberCount() { return subscribers.size(); }
+  public long deliveredCount() { return delivered.sum(); }
+  public long droppedCount() { return dropped.sum(); }
+
+  @PreDestroy
+  public void stop() {
+    heartbeat.shutdownNow();
+    senders.shutdownNow();
+    subscribers.forEach(s -> s.emitter.complete());
+  }
+
+  private final class Subscriber implements Runnable {
+    final SseEmitter emitter;
+    final Predicate<LogEvent> filter;
+    final BlockingQueue<LogEvent> queue = new ArrayBlockingQueue<>(queueSize);
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final AtomicLong missed = new AtomicLong(); // dropped since the last notice
+    volatile boolean pingDue;
+    volatile boolean closed;
+
+    Subscriber(SseEmitter emitter, Predicate<LogEvent> filter) {
+      this.emitter = emitter;
+      this.filter = filter;
+    }
+
+    void offer(LogEvent e) {
+      if (!queue.offer(e)) {
+        missed.incrementAndGet();
+        dropped.increment();
+      }
+      schedule();
+    }
+
+    void ping() {
+      pingDue = true;
+      schedule();
+    }
+
+    void schedule() {
+      if (closed || !scheduled.compareAndSet(false, true)) return;
+      try {
+        senders.execute(this);
+      } catch (RejectedExecutionException shuttingDown) {
+        scheduled.set(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        LogEvent e;
+        while (!closed && (e = queue.poll()) != null) {
+          emitter.send(SseEmitter.event().data(e.json()));
+          delivered.increment();
+        }
+        long m = missed.getAndSet(0);
+        if (m > 0) emitter.send(SseEmitter.event().name("dropped").data(m));
+        if (pingDue) {
+          pingDue = false;
+          emitter.send(SseEmitter.event().comment("ping"));
+        }
+      } catch (Exception ex) {
+        log.debug("Log stream subscriber went away: {}", ex.getMessage());
+        close();
+        emitter.completeWithError(ex);
+      } finally {
+        scheduled.set(false);
+      }
+      if (!closed && (!queue.isEmpty() || missed.get() > 0)) schedule();
+    }
+
+    void close() {
+      closed = true;
+      subscribers.remove(this);
+      queue.clear();
+    }
+  }
+}
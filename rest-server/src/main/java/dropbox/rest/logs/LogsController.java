@@ -0,0 +1,85 @@
+package dropbox.rest.logs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * TFTP activity for the UI's Activity panel.
+ * A signed-in user only sees their own events (plus those without a user, like BCAST_*);
+ * admins see everything, optionally narrowed with {@code ?user=}. SecurityConfig leaves
+ * {@code /api/logs/**} public, so anonymous callers get only the events without a user.
+ * The stream takes the JWT as {@code ?token=}, since EventSource can't send headers.
+ */
+@RestController
+@RequestMapping("/api/logs")
+public class LogsController {
+  private static final int MAX_LIMIT = 1000;
+
+  private final TelemetryIngest ingest;
+  private final LogStreamHub hub;
+  private final long sseTimeoutMs;
+
+  public LogsController(TelemetryIngest ingest, LogStreamHub hub,
+                        @Value("${telemetry.sse-timeout-ms:0}") long sseTimeoutMs) {
+    this.ingest = ingest;
+    this.hub = hub;
+    this.sseTimeoutMs = sseTimeoutMs;
+  }
+
+  @GetMapping
+  public ResponseEntity<String> recent(@RequestParam(defaultValue = "50") int limit,
+                                       @RequestParam(required = false) String user,
+                                       Authentication auth) {
+    int n = Math.max(0, Math.min(limit, MAX_LIMIT));
+    // events are stored as JSON already, so the array is just joined up
+    String body = ingest.recent(n, filterFor(auth, user)).stream()
+        .map(LogEvent::json)
+        .collect(Collectors.joining(",", "[", "]"));
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+  }
+
+  @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter stream(@RequestParam(required = false) String user, Authentication auth) {
+    return hub.subscribe(filterFor(auth, user), sseTimeoutMs);
+  }
+
+  @GetMapping("/stats")
+  public Map<String,Object> stats() {
+    Map<String,Object> m = new LinkedHashMap<>();
+    m.put("datagrams", ingest.datagramCount());
+    m.put("events", ingest.eventCount());
+    m.put("malformed", ingest.malformedCount());
+    m.put("buffered", ingest.bufferedCount());
+    m.put("bufferCapacity", ingest.bufferCapacity());
+    m.put("subscribers", hub.subscriberCount());
+    m.put("delivered", hub.deliveredCount());
+    m.put("dropped", hub.droppedCount());
+    return m;
+  }
+
+  private static Predicate<LogEvent> filterFor(Authentication auth, String user) {
+    if (auth == null || !auth.isAuthenticated() || auth instanceof AnonymousAuthenticationToken) {
+      return e -> e.visibleTo(null);
+    }
+    if (!isAdmin(auth)) {
+      String me = auth.getName();
+      return e -> e.visibleTo(me);
+    }
+    if (user == null || user.isBlank()) return e -> true;
+    return e -> e.user().equals(user);
+  }
+
+  private static boolean isAdmin(Authentication auth) {
+    return auth.getAuthorities().stream().anyMatch(a -> "ROLE_ADMIN".equals(a.getAuthority()));
+  }
+}
@@ -0,0 +1,129 @@
+package dropbox.rest.logs;
+
+import bgu.spl.net.telemetry.BinaryEventDecoder;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Receives the TFTP server's telemetry datagrams on {@code telemetry.port}.
+ * Both formats are accepted: newline-delimited JSON and the binary batches of
+ * {@link BinaryEventDecoder}. Events go into a ring of the last {@code telemetry.ring-size}
+ * (for {@code GET /api/logs}) and on to {@link LogStreamHub} for the live stream.
+ */
+@Component
+public class TelemetryIngest {
+  private static final Logger log = LoggerFactory.getLogger(TelemetryIngest.class);
+  private static final TypeReference<Map<String,Object>> EVENT = new TypeReference<>() {};
+
+  private final ObjectMapper mapper;
+  private final LogStreamHub hub;
+  private final LogRing ring;
+  private final String bind;
+  private final int port;
+  private volatile DatagramSocket socket;
+
+  private final LongAdder datagrams = new LongAdder();
+  private final LongAdder events = new LongAdder();
+  private final LongAdder malformed = new LongAdder();
+
+  public TelemetryIngest(ObjectMapper mapper, LogStreamHub hub,
+                         @Value("${telemetry.bind:127.0.0.1}") String bind,
+                         @Value("${telemetry.port:9099}") int port,
+                         @Value("${telemetry.ring-size:10000}") int ringSize) {
+    this.mapper = mapper;
+    this.hub = hub;
+    this.bind = bind;
+    this.port = port;
+    this.ring = new LogRing(ringSize);
+  }
+
+  @PostConstruct
+  public void start() {
+    Thread t = new Thread(this::loop, "telemetry-ingest");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    DatagramSocket s = socket;
+    if (s != null) s.close();
+  }
+
+  private void loop() {
+    try (DatagramSocket s = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(bind), port))) {
+      s.setReceiveBufferSize(1 << 20); // bursts arrive faster than we parse
+      socket = s;
+      log.info("Telemetry ingest listening on udp {}:{}", bind, port);
+      byte[] buf = new byte[65535];
+      DatagramPacket p = new DatagramPacket(buf, buf.length);
+      while (!s.isClosed()) {
+        p.setLength(buf.length);
+        s.receive(p);
+        datagrams.increment();
+        try {
+          accept(buf, p.getOffset(), p.getLength());
+        } catch (Exception e) {
+          malformed.increment();
+          log.debug("Dropping malformed telemetry datagram from {}: {}", p.getSocketAddress(), e.getMessage());
+        }
+      }
+    } catch (Exception e) {
+      if (socket == null || !socket.isClosed()) log.error("Telemetry ingest terminated unexpectedly", e);
+    }
+  }
+
+  private void accept(byte[] data, int off, int len) throws Exception {
+    if (BinaryEventDecoder.isBinary(data, off, len)) {
+      for (Map<String,Object> m : BinaryEventDecoder.decode(data, off, len)) {
+        add(m, mapper.writeValueAsString(m));
+      }
+      return;
+    }
+    String text = new String(data, off, len, StandardCharsets.UTF_8);
+    for (String line : text.split("\n")) {
+      if (line.isBlank()) continue;
+      try {
+        add(mapper.readValue(line, EVENT), line.strip()); // already JSON, forwarded as sent
+      } catch (Exception e) {
+        malformed.increment(); // one bad line doesn't cost the rest of the batch
+      }
+    }
+  }
+
+  private void add(Map<String,Object> m, String json) {
+    Object ts = m.get("ts");
+    Object user = m.get("user");
+    LogEvent e = new LogEvent(ts instanceof Number n ? n.longValue() : System.currentTimeMillis(),
+        String.valueOf(m.get("event")), user == null ? "" : user.toString(), json);
+    ring.add(e);
+    events.increment();
+    hub.publish(e);
+  }
+
+  List<LogEvent> recent(int limit, Predicate<LogEvent> filter) {
+    return ring.recent(limit, filter);
+  }
+
+  public long datagramCount() { return datagrams.sum(); }
+  public long eventCount() { return events.sum(); }
+  public long malformedCount() { return malformed.sum(); }
+  public int bufferedCount() { return ring.size(); }
+  public int bufferCapacity() { return ring.capacity(); }
+}
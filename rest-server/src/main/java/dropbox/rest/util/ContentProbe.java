@@ -0,0 +1,152 @@
+package dropbox.rest.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256, byte count and content type of a file, taken from the bytes as they are written,
+ * so nothing has to read the file back afterwards. Feed it with {@link #wrap} around the
+ * upload stream, or with {@link #update} from a loop that already reads the data.
+ * <p>
+ * The type comes from the first bytes (magic numbers of common formats) and otherwise from
+ * the file name's extension.
+ */
+public final class ContentProbe {
+  private static final int HEAD = 32;
+
+  private final MessageDigest sha;
+  private final byte[] head = new byte[HEAD];
+  private int headLen;
+  private long size;
+
+  public ContentProbe() {
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void update(byte[] b, int off, int len) {
+    if (len <= 0) return;
+    sha.update(b, off, len);
+    if (headLen < HEAD) {
+      int n = Math.min(HEAD - headLen, len);
+      System.arraycopy(b, off, head, headLen, n);
+      headLen += n;
+    }
+    size += len;
+  }
+
+  /** consumes the buffer's remaining bytes */
+  public void update(ByteBuffer buf) {
+    int len = buf.remaining();
+    if (headLen < HEAD) {
+      int n = Math.min(HEAD - headLen, len);
+      buf.duplicate().get(head, headLen, n);
+      headLen += n;
+    }
+    sha.update(buf);
+    size += len;
+  }
+
+  /** a stream that passes {@code in} through and feeds every byte read to this probe */
+  public InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) update(new byte[]{ (byte) b }, 0, 1);
+        return b;
+      }
+      @Override public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) update(b, off, n);
+        return n;
+      }
+    };
+  }
+
+  /** lower-case hex; call once, after the last byte */
+  public String sha256() { return HexFormat.of().formatHex(sha.digest()); }
+
+  public long size() { return size; }
+
+  /** the type by magic number, else by {@code fileName}'s extension, else application/octet-stream */
+  public String mimeType(String fileName) {
+    return mimeType(sniffedType(), fileName);
+  }
+
+  /** {@link #mimeType(String)} for a type sniffed earlier, e.g. when the name wasn't known yet */
+  public static String mimeType(String sniffed, String fileName) {
+    if ("application/zip".equals(sniffed) && fileName != null) {
+      String byName = mimeTypeForName(fileName); // docx, jar, epub… are zips with a better name
+      if (byName != null) return byName;
+    }
+    if (sniffed != null) return sniffed;
+    String byName = fileName == null ? null : mimeTypeForName(fileName);
+    return byName != null ? byName : "application/octet-stream";
+  }
+
+  /** by extension only; null if it isn't known */
+  public static String mimeTypeForName(String fileName) {
+    return URLConnection.getFileNameMap().getContentTypeFor(fileName);
+  }
+
+  /** the type by magic number alone; null if the first bytes aren't a format it knows */
+  public String sniffedType() {
+    if (starts(0x89, 'P', 'N', 'G')) return "image/png";
+    if (starts(0xFF, 0xD8, 0xFF)) return "image/jpeg";
+    if (starts('G', 'I', 'F', '8')) return "image/gif";
+    if (starts('B', 'M') && bmpHeader()) return "image/bmp";
+    if (starts('R', 'I', 'F', 'F') && at(8, "WEBP")) return "image/webp";
+    if (starts('R', 'I', 'F', 'F') && at(8, "WAVE")) return "audio/wav";
+    if (starts('%', 'P', 'D', 'F')) return "application/pdf";
+    if (starts('P', 'K', 3, 4)) return "application/zip";
+    if (starts(0x1F, 0x8B, 8)) return "application/gzip";
+    if (starts('7', 'z', 0xBC, 0xAF, 0x27, 0x1C)) return "application/x-7z-compressed";
+    if (starts('I', 'D', '3') && id3Header()) return "audio/mpeg";
+    if (starts('O', 'g', 'g', 'S')) return "audio/ogg";
+    if (starts('f', 'L', 'a', 'C')) return "audio/flac";
+    if (at(4, "ftyp")) return "video/mp4";
+    if (starts(0x1A, 0x45, 0xDF, 0xA3)) return "video/webm";
+    return null;
+  }
+
+  // "BM" and "ID3" are short enough to begin a text file, so the headers behind them are checked too
+
+  /** reserved bytes 6-9 zero, and a known DIB header size at 14 (little endian) */
+  private boolean bmpHeader() {
+    if (headLen < 18 || u8(6) != 0 || u8(7) != 0 || u8(8) != 0 || u8(9) != 0) return false;
+    int dib = u8(14) | u8(15) << 8 | u8(16) << 16 | u8(17) << 24;
+    return dib == 12 || dib == 40 || dib == 52 || dib == 56 || dib == 64 || dib == 108 || dib == 124;
+  }
+
+  /** ID3v2.2-2.4, no undefined flags, and a size of four 7-bit bytes */
+  private boolean id3Header() {
+    if (headLen < 10 || u8(3) < 2 || u8(3) > 4 || u8(4) == 0xFF || (u8(5) & 0x0F) != 0) return false;
+    for (int i = 6; i < 10; i++) if (u8(i) >= 0x80) return false;
+    return true;
+  }
+
+  private int u8(int i) { return head[i] & 0xff; }
+
+  private boolean starts(int... magic) {
+    if (headLen < magic.length) return false;
+    for (int i = 0; i < magic.length; i++) if ((head[i] & 0xff) != magic[i]) return false;
+    return true;
+  }
+
+  private boolean at(int off, String ascii) {
+    byte[] b = ascii.getBytes(StandardCharsets.US_ASCII);
+    if (headLen < off + b.length) return false;
+    for (int i = 0; i < b.length; i++) if (head[off + i] != b[i]) return false;
+    return true;
+  }
+}
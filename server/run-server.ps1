@@ -22,6 +22,7 @@ $base     = Join-Path $projectRoot "server\Files"
 $teleHost = "127.0.0.1"
 $telePort = 9099
 $port     = if ($args.Length -ge 1) { $args[0] } else { 7777 }
+$mode     = if ($args.Length -ge 2) { $args[1] } else { "tpc" }
 
 # Find Maven
 $mvn = "$env:USERPROFILE\scoop\apps\maven\current\bin\mvn.cmd"
@@ -33,6 +34,13 @@ if (-not (Test-Path $mvn)) {
   }
 }
 
+Write-Host "Installing the shared telemetry format..." -ForegroundColor Cyan
+& $mvn -q -f (Join-Path $projectRoot "telemetry-format\pom.xml") install
+if ($LASTEXITCODE -ne 0) {
+  Write-Error "Build failed!"
+  exit 1
+}
+
 Write-Host "Building TFTP server..." -ForegroundColor Cyan
 & $mvn -q clean compile
 if ($LASTEXITCODE -ne 0) {
@@ -45,14 +53,14 @@ if (-not (Test-Path $base)) {
   New-Item -ItemType Directory -Path $base -Force | Out-Null 
 }
 
-Write-Host "Starting TftpServer on port $port" -ForegroundColor Green
+Write-Host "Starting TftpServer on port $port ($mode)" -ForegroundColor Green
 Write-Host "Storage directory: $base" -ForegroundColor Cyan
 Write-Host ""
 
 # Use exec-maven-plugin to run the server
 & $mvn exec:java `
   "-Dexec.mainClass=bgu.spl.net.impl.tftp.TftpServer" `
-  "-Dexec.args=$port" `
+  "-Dexec.args=$port $mode" `
   "-Dexec.classpathScope=compile" `
   "-Dstorage.base-dir=$base" `
   "-Dtelemetry.host=$teleHost" `
@@ -14,4 +14,11 @@ public interface BidiMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+	 * Called once after the connection was closed, by either side, from the same thread context
+	 * as {@link #process}; a place to release whatever an interrupted exchange left behind
+	 */
+    default void connectionClosed() {
+    }
 }
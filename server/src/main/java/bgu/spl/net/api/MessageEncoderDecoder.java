@@ -1,5 +1,10 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +16,26 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * consumes all the remaining bytes of the given buffer
+     * the default implementation feeds them one by one to {@link #decodeNextByte(byte)};
+     * decoders that can parse whole frames at once should override it
+     *
+     * @param buffer bytes read from the connection, consumed up to its limit
+     * @return the messages completed by these bytes, in order (possibly empty)
+     */
+    default List<T> decode(ByteBuffer buffer) {
+        List<T> messages = null;
+        while (buffer.hasRemaining()) {
+            T msg = decodeNextByte(buffer.get());
+            if (msg != null) {
+                if (messages == null) messages = new ArrayList<>(2);
+                messages.add(msg);
+            }
+        }
+        return messages == null ? Collections.emptyList() : messages;
+    }
+
     /**
      * encodes the given message to bytes array
      *
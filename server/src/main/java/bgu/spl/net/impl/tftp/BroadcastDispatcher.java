@@ -0,0 +1,185 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.srv.Connections;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers BCAST frames off the caller's thread.
+ * <p>
+ * {@link #publish} only hands the frame to a single fan-out thread (so broadcasts keep
+ * their order), which appends it to a bounded outbox per target connection. A small
+ * pool of sender threads drains each outbox, writing everything queued so far as one
+ * message, so a client that reads slowly only ever holds up its own notifications.
+ * <p>
+ * Batches are offered to the connection ({@link Connections#offer}) rather than sent, so
+ * the connection itself says when it is backed up: a reactor connection with more than
+ * {@code tftp.bcast-max-queued-bytes} waiting to be written, or a blocking one whose lock
+ * or socket doesn't free up within {@code tftp.bcast-write-timeout-ms} (a blocking
+ * connection stuck in the middle of the write disconnects itself, as a half-written frame
+ * can't be followed by anything). A refused batch, like a full outbox, makes the client a
+ * slow consumer: the frames are dropped for it, or with
+ * {@code tftp.bcast-slow-policy=disconnect} the client is disconnected.
+ * <p>
+ * {@code tftp.bcast-scope=owner} limits a broadcast to the sessions of the user whose
+ * folder changed (folders are per user); the default {@code all} tells every logged in client.
+ */
+final class BroadcastDispatcher {
+
+    enum SlowPolicy { DROP, DISCONNECT }
+
+    private static final int MAX_BATCH_BYTES = 1 << 16;
+
+    /** one per connection that was sent something */
+    private static final class Outbox {
+        final ArrayBlockingQueue<byte[]> pending;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        int batchFrames; // in the last nextBatch(); only the draining thread touches it
+
+        Outbox(int capacity) { pending = new ArrayBlockingQueue<>(capacity); }
+    }
+
+    private final SessionIndex sessions;
+    private final int queueCapacity;
+    private final boolean ownerScope;
+    private final SlowPolicy slowPolicy;
+    private final long maxQueuedBytes;
+    private final long writeTimeoutMs;
+    private final ExecutorService fanOut;
+    private final ExecutorService senders;
+    private final ConcurrentHashMap<Integer, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    BroadcastDispatcher(SessionIndex sessions) {
+        this(sessions,
+                Math.max(1, Integer.getInteger("tftp.bcast-threads", 2)),
+                Math.max(1, Integer.getInteger("tftp.bcast-queue", 256)),
+                "owner".equalsIgnoreCase(System.getProperty("tftp.bcast-scope", "all")),
+                SlowPolicy.valueOf(System.getProperty("tftp.bcast-slow-policy", "drop").toUpperCase(Locale.ROOT)),
+                // room for a full RRQ window (64 x 64 KiB) on top of the notifications
+                Math.max(1, Long.getLong("tftp.bcast-max-queued-bytes", 8L << 20)),
+                Math.max(1, Long.getLong("tftp.bcast-write-timeout-ms", 5_000)));
+    }
+
+    BroadcastDispatcher(SessionIndex sessions, int senderThreads, int queueCapacity, boolean ownerScope,
+                        SlowPolicy slowPolicy, long maxQueuedBytes, long writeTimeoutMs) {
+        this.sessions = sessions;
+        this.queueCapacity = queueCapacity;
+        this.ownerScope = ownerScope;
+        this.slowPolicy = slowPolicy;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.fanOut = Executors.newSingleThreadExecutor(daemon("bcast-fanout"));
+        this.senders = Executors.newFixedThreadPool(senderThreads, daemon("bcast-sender"));
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Queues a complete BCAST frame for delivery and returns immediately.
+     * @param owner the user whose folder changed
+     */
+    void publish(Connections<byte[]> conns, byte[] frame, String owner) {
+        published.increment();
+        fanOut.execute(() -> {
+            Iterable<Integer> targets = ownerScope ? sessions.connectionsOf(owner) : sessions.connections();
+            for (int connId : targets) enqueue(conns, connId, frame);
+        });
+    }
+
+    /** drops whatever is still queued for a connection that went away */
+    void forget(int connId) {
+        outboxes.remove(connId);
+    }
+
+    private void enqueue(Connections<byte[]> conns, int connId, byte[] frame) {
+        Outbox box = outboxes.computeIfAbsent(connId, k -> new Outbox(queueCapacity));
+        if (!box.pending.offer(frame)) {
+            onSlowConsumer(conns, connId, 1);
+            return;
+        }
+        if (box.scheduled.compareAndSet(false, true)) {
+            senders.execute(() -> drain(conns, connId, box));
+        }
+    }
+
+    private void drain(Connections<byte[]> conns, int connId, Outbox box) {
+        do {
+            byte[] batch;
+            while ((batch = nextBatch(box)) != null) {
+                batches.increment();
+                if (conns.offer(connId, batch, maxQueuedBytes, writeTimeoutMs)) {
+                    delivered.add(box.batchFrames);
+                } else {
+                    refused.increment();
+                    onSlowConsumer(conns, connId, box.batchFrames);
+                }
+            }
+            box.scheduled.set(false);
+            // a frame offered after our last poll but before the flag was cleared is ours too
+        } while (!box.pending.isEmpty() && box.scheduled.compareAndSet(false, true));
+    }
+
+    /** everything queued (up to MAX_BATCH_BYTES) as one byte[] of back to back frames, or null */
+    private byte[] nextBatch(Outbox box) {
+        byte[] first = box.pending.poll(); // only the draining thread polls, so peek-then-poll below is safe
+        if (first == null) return null;
+        box.batchFrames = 1;
+        byte[] next = box.pending.peek();
+        if (next == null || first.length + next.length > MAX_BATCH_BYTES) return first;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(MAX_BATCH_BYTES, first.length * 8));
+        out.write(first, 0, first.length);
+        while ((next = box.pending.peek()) != null && out.size() + next.length <= MAX_BATCH_BYTES) {
+            box.pending.poll();
+            box.batchFrames++;
+            out.write(next, 0, next.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** also when the connection is gone: its outbox is forgotten when the protocol hears of it */
+    private void onSlowConsumer(Connections<byte[]> conns, int connId, int frames) {
+        dropped.add(frames);
+        if (slowPolicy == SlowPolicy.DISCONNECT) {
+            slowDisconnects.increment();
+            forget(connId);
+            conns.disconnect(connId);
+        }
+    }
+
+    // -------- metrics --------
+    long publishedCount() { return published.sum(); }
+    long deliveredCount() { return delivered.sum(); }
+    long batchCount() { return batches.sum(); }
+    long droppedCount() { return dropped.sum(); }
+    long slowDisconnectCount() { return slowDisconnects.sum(); }
+    long refusedCount() { return refused.sum(); }
+    int pendingCount() {
+        int n = 0;
+        for (Outbox box : outboxes.values()) n += box.pending.size();
+        return n;
+    }
+}
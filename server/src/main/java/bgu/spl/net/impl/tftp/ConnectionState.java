@@ -0,0 +1,14 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.concurrent.TimeUnit;
+
+/** state shared by every connection's {@link TftpProtocol} (and read by {@link TftpMetrics}) */
+final class ConnectionState {
+    static final SessionIndex sessions = new SessionIndex();
+    static final BroadcastDispatcher broadcasts = new BroadcastDispatcher(sessions);
+    // renewed on every block, so only a client that stalls this long loses its lease
+    static final LeaseRegistry leases = new LeaseRegistry(Long.getLong("tftp.lease-ttl-ms", 60_000), TimeUnit.MILLISECONDS);
+    static final DirectoryIndex dirs = new DirectoryIndex();
+
+    private ConnectionState() {}
+}
@@ -0,0 +1,204 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The file names of every user folder that was listed, kept in memory so that DIRQ and
+ * LIST touch the disk only the first time. After that scan the protocol reports its own
+ * uploads and deletes, and a {@link WatchService} picks up whatever else changes the
+ * folder (the REST server shares it). Every event is checked against the disk, so it
+ * doesn't matter in which order the two report a change.
+ * <p>
+ * Each listing also keeps its DIRQ payload ('\0'-terminated names, sorted), encoded on the
+ * first DIRQ after a change and then shared by every DIRQ until the next one. If the folder
+ * can't be watched, or the watcher loses events, the folder is scanned again on its next DIRQ.
+ */
+final class DirectoryIndex {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Listing {
+        final String user;
+        final Path dir;
+        final TreeSet<String> names = new TreeSet<>();
+        WatchKey key;            // null while the folder isn't watched
+        boolean current;         // false until scanned, and again when events were lost
+        volatile byte[] encoded; // null after a change; only ever replaced, never written into
+
+        Listing(String user, Path dir) {
+            this.user = user;
+            this.dir = dir;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Listing> listings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WatchKey, Listing> watched = new ConcurrentHashMap<>();
+    private volatile WatchService watcher;
+    private boolean watcherFailed;
+
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder events = new LongAdder();
+
+    /**
+     * @param user owner of the folder, the key of its listing
+     * @param dir  the user's folder
+     * @return the names of the regular files in {@code dir}, each followed by '\0'; not to be modified
+     */
+    byte[] encoded(String user, Path dir) throws IOException {
+        Listing l = listings.computeIfAbsent(user, u -> new Listing(u, dir));
+        byte[] e = l.encoded;
+        if (e != null) {
+            hits.increment();
+            return e;
+        }
+        synchronized (l) {
+            if (!l.current) scan(l);
+            byte[] out = (l.encoded != null) ? l.encoded : encode(l.names);
+            if (l.current) l.encoded = out; // an unwatched folder is scanned on every DIRQ
+            return out;
+        }
+    }
+
+    /**
+     * One page of a listing, for LIST.
+     * @param prefix only names starting with this ("" for all)
+     * @param after  the last name of the previous page, or null for the first page
+     * @param limit  page size
+     * @return up to {@code limit + 1} names in order; an extra name means there is another page
+     */
+    List<String> page(String user, Path dir, String prefix, String after, int limit) throws IOException {
+        Listing l = listings.computeIfAbsent(user, u -> new Listing(u, dir));
+        synchronized (l) {
+            if (!l.current) scan(l);
+            boolean resume = after != null && after.compareTo(prefix) >= 0;
+            List<String> out = new ArrayList<>(Math.min(limit + 1, 256));
+            for (String n : l.names.tailSet(resume ? after : prefix, !resume)) {
+                if (!n.startsWith(prefix) || out.size() > limit) break;
+                out.add(n);
+            }
+            return out;
+        }
+    }
+
+    /** a file was added to the folder of {@code user}; a no-op until it is listed */
+    void added(String user, String name) {
+        Listing l = listings.get(user);
+        if (l == null) return;
+        synchronized (l) {
+            if (l.current && l.names.add(name)) l.encoded = null;
+        }
+    }
+
+    /** a file was removed from the folder of {@code user} */
+    void removed(String user, String name) {
+        Listing l = listings.get(user);
+        if (l == null) return;
+        synchronized (l) {
+            if (l.current && l.names.remove(name)) l.encoded = null;
+        }
+    }
+
+    // caller holds the listing's lock
+    private void scan(Listing l) throws IOException {
+        // watch first, so nothing that changes during the scan is missed
+        boolean watching = watch(l);
+        l.names.clear();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(l.dir)) {
+            for (Path p : files) {
+                if (Files.isRegularFile(p)) l.names.add(p.getFileName().toString());
+            }
+        }
+        scans.increment();
+        l.current = watching;
+        l.encoded = null;
+    }
+
+    private static byte[] encode(Iterable<String> names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String n : names) {
+            byte[] b = n.getBytes(StandardCharsets.UTF_8);
+            out.write(b, 0, b.length);
+            out.write(0);
+        }
+        return out.size() == 0 ? EMPTY : out.toByteArray();
+    }
+
+    /** @return true if changes to the folder will be reported from now on */
+    private boolean watch(Listing l) {
+        if (l.key != null) return true;
+        WatchService ws = watcher();
+        if (ws == null) return false;
+        try {
+            l.key = l.dir.register(ws, ENTRY_CREATE, ENTRY_DELETE);
+            watched.put(l.key, l);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private synchronized WatchService watcher() {
+        if (watcher != null || watcherFailed) return watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            watcherFailed = true;
+            return null;
+        }
+        Thread t = new Thread(this::watchLoop, "tftp-dir-watch");
+        t.setDaemon(true);
+        t.start();
+        return watcher;
+    }
+
+    private void watchLoop() {
+        WatchService ws = watcher;
+        try {
+            for (;;) {
+                WatchKey key = ws.take();
+                Listing l = watched.get(key);
+                for (WatchEvent<?> ev : key.pollEvents()) {
+                    if (l != null) apply(l, ev);
+                }
+                if (!key.reset()) { // the folder itself is gone
+                    watched.remove(key);
+                    if (l != null) listings.remove(l.user, l);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private void apply(Listing l, WatchEvent<?> ev) {
+        events.increment();
+        synchronized (l) {
+            if (ev.kind() == OVERFLOW) {
+                l.current = false;
+                l.encoded = null;
+                return;
+            }
+            if (!l.current) return; // the next scan will see it anyway
+            String name = ev.context().toString();
+            boolean changed = Files.isRegularFile(l.dir.resolve(name)) ? l.names.add(name) : l.names.remove(name);
+            if (changed) l.encoded = null;
+        }
+    }
+
+    // -------- metrics --------
+    long scanCount() { return scans.sum(); }
+    long hitCount() { return hits.sum(); }
+    long eventCount() { return events.sum(); }
+    int size() { return listings.size(); }
+}
@@ -0,0 +1,120 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leases on (user, file) pairs held by connections while they read, write or delete a file.
+ * A file may have any number of READ holders or a single WRITE holder.
+ * <p>
+ * Acquiring and releasing are a single {@link ConcurrentHashMap#compute} on the pair's key, so two
+ * different files (or two users' files with the same name) never contend with each other.
+ * A holder that doesn't renew its lease within the TTL (e.g. its connection died without
+ * cleaning up) is dropped by the next operation on that key.
+ * <p>
+ * Renewing happens on every DATA/ACK of a transfer, so it neither locks the key nor copies the lease:
+ * each holder's expiry is its own {@link AtomicLong}, shared by every copy of the holder map,
+ * and a renewal is one store to it.
+ */
+final class LeaseRegistry {
+
+    enum Mode { READ, WRITE }
+
+    /** mode and holder set are immutable, replaced as a whole inside compute(); expiries are not */
+    private static final class Lease {
+        final Mode mode;
+        final Map<Integer, AtomicLong> holders; // connId -> expiry (System.nanoTime)
+
+        Lease(Mode mode, Map<Integer, AtomicLong> holders) {
+            this.mode = mode;
+            this.holders = holders;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    LeaseRegistry(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    private static String key(String user, String file) {
+        return user + '\0' + file; // neither can contain '\0', it terminates both on the wire
+    }
+
+    /**
+     * @return true if {@code connId} now holds (or already held) the lease in the given mode
+     */
+    boolean tryAcquire(String user, String file, int connId, Mode mode) {
+        long now = System.nanoTime();
+        boolean[] granted = {false};
+        leases.compute(key(user, file), (k, cur) -> {
+            Map<Integer, AtomicLong> live = liveHolders(cur, now);
+            Map<Integer, AtomicLong> next;
+            if (live.isEmpty() || (live.size() == 1 && live.containsKey(connId))) {
+                next = new HashMap<>(2);
+            } else if (mode == Mode.READ && cur.mode == Mode.READ) {
+                next = new HashMap<>(live);
+            } else {
+                return live == cur.holders ? cur : new Lease(cur.mode, live);
+            }
+            next.put(connId, new AtomicLong(now + ttlNanos));
+            granted[0] = true;
+            return new Lease(mode, next);
+        });
+        if (granted[0]) acquired.increment();
+        else conflicts.increment();
+        return granted[0];
+    }
+
+    /**
+     * pushes back the expiry of a lease held by {@code connId}; a no-op if it doesn't hold one.
+     * A renewal racing with the holder being dropped as expired lands on the dropped entry and
+     * is lost, exactly as if it had come a moment later.
+     */
+    void renew(String user, String file, int connId) {
+        Lease cur = leases.get(key(user, file));
+        if (cur == null) return;
+        AtomicLong expiry = cur.holders.get(connId);
+        if (expiry != null) expiry.set(System.nanoTime() + ttlNanos);
+    }
+
+    void release(String user, String file, int connId) {
+        leases.computeIfPresent(key(user, file), (k, cur) -> {
+            if (!cur.holders.containsKey(connId)) return cur;
+            if (cur.holders.size() == 1) return null;
+            Map<Integer, AtomicLong> next = new HashMap<>(cur.holders);
+            next.remove(connId);
+            return new Lease(cur.mode, next);
+        });
+    }
+
+    /** the holders of `cur` that haven't expired; `cur.holders` itself if none did */
+    private Map<Integer, AtomicLong> liveHolders(Lease cur, long now) {
+        if (cur == null) return Collections.emptyMap();
+        Map<Integer, AtomicLong> live = null;
+        for (Map.Entry<Integer, AtomicLong> e : cur.holders.entrySet()) {
+            if (e.getValue().get() - now < 0) {
+                if (live == null) live = new HashMap<>(cur.holders);
+                live.remove(e.getKey());
+                expired.increment();
+            }
+        }
+        return live == null ? cur.holders : live;
+    }
+
+    // -------- contention metrics --------
+    long acquiredCount() { return acquired.sum(); }
+    long conflictCount() { return conflicts.sum(); }
+    long expiredCount() { return expired.sum(); }
+    int activeCount() { return leases.size(); }
+}
@@ -0,0 +1,41 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * CRC-32 of the first bytes of a file, as sent in the {@code offsetcrc} option of a resumed
+ * RRQ/WRQ: 8 lower-case hex digits. It only has to catch a partial copy that isn't a prefix of
+ * the file any more (the file was replaced, or the partial is damaged), so a CRC is enough.
+ */
+final class PrefixChecksum {
+
+    private static final int CHUNK = 64 * 1024;
+
+    private PrefixChecksum() {}
+
+    /** reads [0, length) with positional reads, so the channel's position is left alone */
+    static String of(FileChannel ch, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(CHUNK, Math.max(1, length)));
+        long pos = 0;
+        while (pos < length) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), length - pos));
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("file shorter than " + length + " bytes");
+            buf.flip();
+            crc.update(buf);
+            pos += n;
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+    /** true if {@code length} is within the file and its prefix has checksum {@code expected} */
+    static boolean matches(FileChannel ch, long length, String expected) throws IOException {
+        if (expected == null || length <= 0 || length > ch.size()) return false;
+        return of(ch, length).equalsIgnoreCase(expected.trim());
+    }
+}
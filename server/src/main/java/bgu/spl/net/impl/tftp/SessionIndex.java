@@ -0,0 +1,67 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is logged in on which connection, indexed both ways (connId -> user and
+ * user -> connIds) so that login checks, lookups and logouts cost O(1) no matter
+ * how many sessions are open. Both maps are only changed while holding the user's
+ * entry in {@code connsByUser} (inside compute), so they never disagree for long.
+ */
+final class SessionIndex {
+
+    private final ConcurrentHashMap<Integer, String> userByConn = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Integer>> connsByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Logs {@code user} in on {@code connId}, unless that connection is already logged in
+     * or the user already has a session elsewhere.
+     * @return true if the login was recorded
+     */
+    boolean tryLogin(String user, int connId) {
+        if (userByConn.containsKey(connId)) return false;
+        boolean[] added = {false};
+        connsByUser.compute(user, (u, conns) -> {
+            if (conns != null && !conns.isEmpty()) return conns; // one session per user
+            Set<Integer> next = ConcurrentHashMap.newKeySet(2);
+            next.add(connId);
+            userByConn.put(connId, u);
+            added[0] = true;
+            return next;
+        });
+        return added[0];
+    }
+
+    /**
+     * @return the user that was logged in on {@code connId}, or null
+     */
+    String logout(int connId) {
+        String user = userByConn.get(connId);
+        if (user == null) return null;
+        connsByUser.computeIfPresent(user, (u, conns) -> {
+            conns.remove(connId);
+            userByConn.remove(connId);
+            return conns.isEmpty() ? null : conns;
+        });
+        return user;
+    }
+
+    String userOf(int connId) { return userByConn.get(connId); }
+
+    boolean isLoggedIn(int connId) { return userByConn.containsKey(connId); }
+
+    boolean isOnline(String user) { return connsByUser.containsKey(user); }
+
+    /** live view of the connections of `user` (empty if none) */
+    Set<Integer> connectionsOf(String user) {
+        Set<Integer> conns = (user == null) ? null : connsByUser.get(user);
+        return conns == null ? Collections.emptySet() : Collections.unmodifiableSet(conns);
+    }
+
+    /** live, weakly consistent view of every logged in connection; iterating it needs no copy */
+    Set<Integer> connections() { return Collections.unmodifiableSet(userByConn.keySet()); }
+
+    int size() { return userByConn.size(); }
+}
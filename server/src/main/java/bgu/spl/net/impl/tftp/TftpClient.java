@@ -2,7 +2,11 @@ package bgu.spl.net.impl.tftp;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.Scanner;
+import java.util.zip.CRC32;
 
 public class TftpClient {
 
@@ -14,14 +18,32 @@ public class TftpClient {
     private static String wrqFilename = null;
     private static int wrqBlock = 1;
     private static FileInputStream wrqFileIn = null;
+    private static int wantBlksize = 512;   // requested on RRQ/WRQ (args 3 and 4)
+    private static int wantWindow = 1;
+    private static int blksize = 512;       // negotiated for the current transfer
+    private static int window = 1;
+    private static int rrqUnacked = 0;
+    // DIRQ blocks are cut every 512 bytes, even inside a name, so the listing is printed once complete
+    private static final ByteArrayOutputStream dirBuf = new ByteArrayOutputStream();
+    private static boolean isLIST = false;  // "LIST [prefix]" shows the first page, "NEXT" the following one
+    private static String listPrefix = "";
+    private static String listCursor = "";
+    // "RRQ -c name" / "WRQ -c name" continue an interrupted transfer (the "offset" option)
+    private static boolean resume = false;
+    private static boolean rrqAppend = false;
+    private static long oackOffset = -1;
+    private static String oackOffsetCrc = null;
 
     public static void main(String[] args) {
         String host = "127.0.0.1";
         int port = 7777;
         if (args.length > 0) host = args[0];
         if (args.length > 1) port = Integer.parseInt(args[1]);
+        if (args.length > 2) wantBlksize = Math.max(8, Math.min(65464, Integer.parseInt(args[2])));
+        if (args.length > 3) wantWindow = Math.max(1, Integer.parseInt(args[3]));
 
         try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
             InputStream in = socket.getInputStream();
             OutputStream out = socket.getOutputStream();
             TftpEncoderDecoder encdec = new TftpEncoderDecoder();
@@ -30,41 +52,42 @@ public class TftpClient {
             Thread listener = new Thread(() -> {
                 try {
                     int read;
-                    while ((read = in.read()) >= 0) {
-                        byte[] packet = encdec.decodeNextByte((byte) read);
-                        if (packet != null) {
+                    byte[] chunk = new byte[8192];
+                    while ((read = in.read(chunk)) >= 0) {
+                        for (byte[] packet : encdec.decode(ByteBuffer.wrap(chunk, 0, read))) {
                             switch (packet[1]) {
                                 case 4: // ACK
-                                    System.out.println("ACK " + packet[3]);
-                                    // WRQ: send next DATA block after ACK
-                                    if (isWRQ && wrqFileIn != null) {
-                                        try {
-                                            byte[] buffer = new byte[512];
-                                            int bytesRead = wrqFileIn.read(buffer);
-                                            if (bytesRead > 0) {
-                                                byte[] dataPacket = new byte[6 + bytesRead];
-                                                dataPacket[0] = 0;
-                                                dataPacket[1] = 3;
-                                                dataPacket[2] = (byte)(bytesRead >> 8);
-                                                dataPacket[3] = (byte)(bytesRead & 0xff);
-                                                dataPacket[4] = (byte)(wrqBlock >> 8);
-                                                dataPacket[5] = (byte)(wrqBlock & 0xff);
-                                                System.arraycopy(buffer, 0, dataPacket, 6, bytesRead);
-                                                out.write(dataPacket);
-                                                out.flush();
-                                                wrqBlock++;
-                                            }
-                                            if (bytesRead < 512) {
-                                                wrqFileIn.close();
-                                                wrqFileIn = null;
-                                                isWRQ = false;
-                                                wrqBlock = 1;
-                                                System.out.println("File upload complete.");
-                                            }
-                                        } catch (IOException e) {
-                                            System.out.println("Failed to upload file: " + wrqFilename);
-                                            isWRQ = false;
+                                    int ackBlock = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+                                    System.out.println("ACK " + ackBlock);
+                                    // WRQ: send next window after the ACK of the last block sent
+                                    if (isWRQ && wrqFileIn != null && ackBlock == ((wrqBlock - 1) & 0xffff)) {
+                                        sendWrqWindow(out);
+                                    }
+                                    break;
+                                case 11: // OACK
+                                    applyOack(packet);
+                                    System.out.println("OACK blksize " + blksize + " windowsize " + window);
+                                    if (resume && isRRQ) {
+                                        rrqAppend = oackOffset > 0;
+                                        System.out.println(rrqAppend ? "Resuming download at byte " + oackOffset
+                                                : "Local copy doesn't match, downloading from the start.");
+                                    } else if (resume && isWRQ && wrqFileIn != null && oackOffset > 0) {
+                                        if (!skipUploaded()) {
+                                            // the server's partial isn't ours: a plain WRQ drops it and starts over
+                                            System.out.println("Server copy doesn't match, uploading from the start.");
+                                            resume = false;
+                                            out.write(encodeRequest((short)2, wrqFilename));
+                                            out.flush();
+                                            break;
                                         }
+                                        System.out.println("Resuming upload at byte " + oackOffset);
+                                    }
+                                    resume = false;
+                                    if (isRRQ) {
+                                        out.write(new byte[]{0, 4, 0, 0});
+                                        out.flush();
+                                    } else if (isWRQ && wrqFileIn != null) {
+                                        sendWrqWindow(out);
                                     }
                                     break;
                                 case 5: // ERROR
@@ -78,18 +101,25 @@ public class TftpClient {
                                     System.out.println("BCAST " + action + " " + fileName);
                                     break;
                                 case 3: // DATA
-                                    short dataSize = (short)(((packet[2] & 0xff) << 8) | (packet[3] & 0xff));
-                                    short blockNum = (short)(((packet[4] & 0xff) << 8) | (packet[5] & 0xff));
+                                    int dataSize = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+                                    int blockNum = ((packet[4] & 0xff) << 8) | (packet[5] & 0xff);
                                     byte[] data = new byte[dataSize];
                                     System.arraycopy(packet, 6, data, 0, dataSize);
+                                    boolean last = dataSize < (isRRQ ? blksize : 512);
+                                    // ACK: once per window while downloading, every block otherwise
+                                    if (!isRRQ || last || ++rrqUnacked >= window) {
+                                        rrqUnacked = 0;
+                                        out.write(new byte[]{0, 4, (byte)(blockNum >> 8), (byte)(blockNum & 0xff)});
+                                        out.flush();
+                                    }
 
                                     if (isRRQ) {
                                         try {
                                             if (fileOut == null) {
-                                                fileOut = new FileOutputStream(rrqFilename == null ? "downloaded_file" : rrqFilename);
+                                                fileOut = new FileOutputStream(rrqFilename == null ? "downloaded_file" : rrqFilename, rrqAppend);
                                             }
                                             fileOut.write(data);
-                                            if (dataSize < 512) {
+                                            if (last) {
                                                 fileOut.close();
                                                 fileOut = null;
                                                 isRRQ = false;
@@ -100,15 +130,30 @@ public class TftpClient {
                                             System.out.println("Failed to save file.");
                                             isRRQ = false;
                                         }
-                                    } else if (isDIRQ) {
-                                        String dirList = new String(data);
-                                        String[] files = dirList.split("\0");
-                                        System.out.println("Directory listing:");
-                                        for (String f : files) {
-                                            if (!f.isEmpty())
-                                                System.out.println("  " + f);
+                                    } else if (isLIST) {
+                                        dirBuf.write(data, 0, data.length);
+                                        if (last) {
+                                            // next-page cursor, then name, size and mtime per file
+                                            String[] f = new String(dirBuf.toByteArray(), StandardCharsets.UTF_8).split("\0", -1);
+                                            dirBuf.reset();
+                                            listCursor = f[0];
+                                            for (int i = 1; i + 2 < f.length; i += 3) {
+                                                System.out.println("  " + f[i] + "  " + f[i + 1] + " bytes  "
+                                                        + Instant.ofEpochMilli(Long.parseLong(f[i + 2])));
+                                            }
+                                            isLIST = false;
+                                            System.out.println(listCursor.isEmpty() ? "End of listing." : "More files: NEXT");
                                         }
-                                        if (dataSize < 512) {
+                                    } else if (isDIRQ) {
+                                        dirBuf.write(data, 0, data.length);
+                                        if (last) {
+                                            String[] files = new String(dirBuf.toByteArray(), StandardCharsets.UTF_8).split("\0");
+                                            dirBuf.reset();
+                                            System.out.println("Directory listing:");
+                                            for (String f : files) {
+                                                if (!f.isEmpty())
+                                                    System.out.println("  " + f);
+                                            }
                                             isDIRQ = false;
                                             System.out.println("End of directory listing.");
                                         }
@@ -147,10 +192,13 @@ public class TftpClient {
     private static byte[] parseCommand(String line, TftpEncoderDecoder encdec) {
         String[] parts = line.trim().split(" ", 2);
         String cmd = parts[0].toUpperCase();
+        resume = (cmd.equals("RRQ") || cmd.equals("WRQ")) && parts.length > 1 && parts[1].startsWith("-c ");
+        if (resume) parts[1] = parts[1].substring(3).trim();
 
         isRRQ = false;
         isDIRQ = false;
         isWRQ = false;
+        isLIST = false;
         rrqFilename = null;
         wrqFilename = null;
 
@@ -165,7 +213,18 @@ public class TftpClient {
                 if (parts.length < 2) return null;
                 isRRQ = true;
                 rrqFilename = parts[1];
-                return encodeStringCommand((short)1, parts[1]);
+                blksize = 512; window = 1; rrqUnacked = 0; rrqAppend = false;
+                File partial = new File(parts[1]);
+                if (resume && partial.length() > 0) {
+                    try {
+                        return encodeRequest((short)1, parts[1], "offset", String.valueOf(partial.length()),
+                                "offsetcrc", crcOfPrefix(partial, partial.length()));
+                    } catch (IOException e) {
+                        System.out.println("Cannot read " + parts[1] + ", downloading from the start.");
+                    }
+                }
+                resume = false;
+                return encodeRequest((short)1, parts[1]);
             case "WRQ":
                 if (parts.length < 2) return null;
                 isWRQ = true;
@@ -178,10 +237,23 @@ public class TftpClient {
                     return null;
                 }
                 wrqBlock = 1;
-                return encodeStringCommand((short)2, parts[1]);
+                blksize = 512; window = 1;
+                return resume ? encodeRequest((short)2, parts[1], "resume", "1") : encodeRequest((short)2, parts[1]);
             case "DIRQ":
                 isDIRQ = true;
+                dirBuf.reset();
                 return new byte[]{0, 6};
+            case "LIST":
+                listPrefix = (parts.length < 2) ? "" : parts[1];
+                listCursor = "";
+                isLIST = true;
+                dirBuf.reset();
+                return encodeList();
+            case "NEXT":
+                if (listCursor.isEmpty()) { System.out.println("No more pages."); return null; }
+                isLIST = true;
+                dirBuf.reset();
+                return encodeList();
             case "DISC":
                 return new byte[]{0, 10};
             default:
@@ -190,6 +262,101 @@ public class TftpClient {
         }
     }
 
+    private static void sendWrqWindow(OutputStream out) throws IOException {
+        for (int i = 0; i < window && wrqFileIn != null; i++) {
+            try {
+                byte[] buffer = new byte[blksize];
+                int bytesRead = wrqFileIn.readNBytes(buffer, 0, blksize);
+                byte[] dataPacket = new byte[6 + bytesRead];
+                dataPacket[0] = 0;
+                dataPacket[1] = 3;
+                dataPacket[2] = (byte)(bytesRead >> 8);
+                dataPacket[3] = (byte)(bytesRead & 0xff);
+                dataPacket[4] = (byte)(wrqBlock >> 8);
+                dataPacket[5] = (byte)(wrqBlock & 0xff);
+                System.arraycopy(buffer, 0, dataPacket, 6, bytesRead);
+                out.write(dataPacket);
+                out.flush();
+                wrqBlock++;
+                if (bytesRead < blksize) {
+                    wrqFileIn.close();
+                    wrqFileIn = null;
+                    isWRQ = false;
+                    wrqBlock = 1;
+                    System.out.println("File upload complete.");
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to upload file: " + wrqFilename);
+                isWRQ = false;
+                wrqFileIn = null;
+            }
+        }
+    }
+
+    /** options missing from the OACK keep their defaults */
+    private static void applyOack(byte[] packet) {
+        blksize = 512; window = 1;
+        oackOffset = -1; oackOffsetCrc = null;
+        String[] parts = new String(packet, 2, packet.length - 2, StandardCharsets.UTF_8).split("\0");
+        for (int i = 0; i + 1 < parts.length; i += 2) {
+            try {
+                if (parts[i].equalsIgnoreCase("blksize")) blksize = Integer.parseInt(parts[i + 1]);
+                else if (parts[i].equalsIgnoreCase("windowsize")) window = Integer.parseInt(parts[i + 1]);
+                else if (parts[i].equalsIgnoreCase("offset")) oackOffset = Long.parseLong(parts[i + 1]);
+                else if (parts[i].equalsIgnoreCase("offsetcrc")) oackOffsetCrc = parts[i + 1];
+            } catch (NumberFormatException ignore) {}
+        }
+    }
+
+    /** RRQ/WRQ, with blksize/windowsize options when they differ from the defaults, and `extra` option/value pairs */
+    private static byte[] encodeRequest(short opcode, String name, String... extra) {
+        if (wantBlksize == 512 && wantWindow == 1 && extra.length == 0) return encodeStringCommand(opcode, name);
+        String opts = "\0" + name + "\0"
+                + (wantBlksize != 512 ? "blksize\0" + wantBlksize + "\0" : "")
+                + (wantWindow != 1 ? "windowsize\0" + wantWindow + "\0" : "")
+                + (extra.length > 0 ? String.join("\0", extra) + "\0" : "");
+        return encodeStringCommand(opcode, opts);
+    }
+
+    /** CRC-32 of the first `length` bytes of `f` as 8 hex digits, the "offsetcrc" option */
+    private static String crcOfPrefix(File f, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        try (FileInputStream in = new FileInputStream(f)) {
+            for (long left = length; left > 0; ) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) throw new EOFException();
+                crc.update(buf, 0, n);
+                left -= n;
+            }
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+    /** skips what the server already has, if its checksum matches our file */
+    private static boolean skipUploaded() {
+        File f = new File(wrqFilename);
+        try {
+            if (oackOffset > f.length() || !crcOfPrefix(f, oackOffset).equalsIgnoreCase(oackOffsetCrc)) return false;
+            for (long left = oackOffset; left > 0; ) {
+                long n = wrqFileIn.skip(left);
+                if (n <= 0) return false;
+                left -= n;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** LIST: options as in an OACK, empty ones left out; pages of 20 with size and mtime */
+    private static byte[] encodeList() {
+        String opts = (listPrefix.isEmpty() ? "" : "prefix\0" + listPrefix + "\0")
+                + (listCursor.isEmpty() ? "" : "after\0" + listCursor + "\0")
+                + "limit\0" + 20 + "\0meta\0" + 1 + "\0";
+        return encodeStringCommand((short) 12, opts);
+    }
+
     private static byte[] encodeStringCommand(short opcode, String arg) {
         byte[] op = new byte[]{(byte)(opcode >> 8), (byte)(opcode & 0xff)};
         byte[] str = arg.getBytes();
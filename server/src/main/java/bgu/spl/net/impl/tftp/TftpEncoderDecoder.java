@@ -3,80 +3,134 @@ package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
-    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
-    private short opcode = -1;
-    private int state = 0;     // 0=opcode(2), 1=STR+\0, 2=ERR code(2)->msg+\0, 3=DATA hdr(4)->payload, 4=ACK block(2), 5=BCAST flag(1)->name+\0
-    private int need = 2;      // bytes still needed in current step
+    private static final int FIXED = 0;   // copying until the frame reaches `target` bytes
+    private static final int PAYLOAD = 1; // DATA payload, frame ends at `target`
+    private static final int ZSTRING = 2; // copying until (and including) a '\0'
+    private static final int ZLIST = 3;   // '\0'-terminated strings ended by an empty one (options, OACK, LIST)
+
+    private byte[] frame = new byte[518]; // grows for longer frames
+    private int len = 0;
+    private int phase = FIXED;
+    private int target = 2;               // opcode(2) first
+    private boolean prevZero;             // ZLIST: last copied byte ended a string
+
+    private final ByteBuffer single = ByteBuffer.allocate(1);
 
     @Override
     public byte[] decodeNextByte(byte next) {
-        frame.write(next);
+        single.clear();
+        single.put(next).flip();
+        return step(single); // one byte completes at most one frame
+    }
 
-        if (state == 0) {
-            if (--need == 0) { // read 2 bytes opcode
-                byte[] b = frame.toByteArray();
-                opcode = (short) (((b[0] & 0xff) << 8) | (b[1] & 0xff));
-                switch (opcode) {
-                    case 1: case 2: case 7: case 8:   // <str>\0
-                        state = 1; need = Integer.MAX_VALUE; break;
-                    case 6: case 10:                  // just opcode
-                        return take();
-                    case 4:                           // ACK: + block(2)
-                        state = 4; need = 2; break;
-                    case 5:                           // ERROR: + code(2) then msg+\0
-                        state = 2; need = 2; break;
-                    case 3:                           // DATA: + size(2)+block(2) then payload[size]
-                        state = 3; need = 4; break;
-                    case 9:                           // BCAST: + flag(1) then name+\0
-                        state = 5; need = 1; break;
-                    default:
-                        return take(); // let protocol decide
-                }
+    @Override
+    public List<byte[]> decode(ByteBuffer in) {
+        List<byte[]> out = null;
+        while (in.hasRemaining()) {
+            byte[] f = step(in);
+            if (f != null) {
+                if (out == null) out = new ArrayList<>(2);
+                out.add(f);
             }
-            return null;
         }
+        return out == null ? Collections.emptyList() : out;
+    }
 
-        switch (state) {
-            case 1: // STR+\0
-                if (next == 0) return take();
-                return null;
-            case 2: // ERROR: code(2) -> msg+\0
-                if (--need == 0) { state = 1; need = Integer.MAX_VALUE; }
-                return null;
-            case 3: // DATA header then payload
-                if (--need == 0) {
-                    byte[] a = frame.toByteArray();
-                    int size = ((a[2] & 0xff) << 8) | (a[3] & 0xff);
-                    need = size;
-                    state = 33; // payload
+    @Override
+    public byte[] encode(byte[] message) {
+        return message; // frames are already complete
+    }
+
+    /** consumes bytes of `in` up to the end of the current frame or step; returns the frame once complete */
+    private byte[] step(ByteBuffer in) {
+        if (phase == ZSTRING || phase == ZLIST) {
+            int p = in.position(), limit = in.remaining(), n = 0;
+            boolean done = false;
+            while (n < limit) {
+                byte b = in.get(p + n++);
+                if (phase == ZSTRING) {
+                    if (b == 0) { done = true; break; }
+                } else if (b == 0) {
+                    if (prevZero) { done = true; break; }
+                    prevZero = true;
+                } else {
+                    prevZero = false;
                 }
+            }
+            copy(in, n);
+            if (!done) return null;
+            int opcode = u16(0);
+            if (phase == ZSTRING && len == 3 && (opcode == 1 || opcode == 2)) {
+                // RRQ/WRQ starting with an empty string: name + options follow
+                phase = ZLIST; prevZero = true;
                 return null;
-            case 33: // DATA payload[size]
-                if (--need == 0) return take();
-                return null;
-            case 4: // ACK block(2)
-                if (--need == 0) return take();
-                return null;
-            case 5: // BCAST flag(1) then name+\0
-                if (--need == 0) { state = 1; need = Integer.MAX_VALUE; }
-                return null;
-            default:
+            }
+            return take();
+        }
+
+        copy(in, Math.min(target - len, in.remaining()));
+        if (len < target) return null;
+        return (phase == PAYLOAD) ? take() : onHeader();
+    }
+
+    /** a fixed-size prefix is complete: decide how the rest of the frame is delimited */
+    private byte[] onHeader() {
+        int opcode = u16(0);
+        if (len == 2) {
+            switch (opcode) {
+                case 1: case 2: case 7: case 8:   // <str>\0
+                    phase = ZSTRING; return null;
+                case 6: case 10:                  // just opcode
+                    return take();
+                case 4:                           // ACK: + block(2)
+                case 5:                           // ERROR: + code(2) then msg+\0
+                    target = 4; return null;
+                case 3:                           // DATA: + size(2)+block(2) then payload[size]
+                    target = 6; return null;
+                case 9:                           // BCAST: + flag(1) then name+\0
+                    target = 3; return null;
+                case 11:                          // OACK: (opt+\0 value+\0)* then \0
+                case 12:                          // LIST: same layout as OACK
+                    phase = ZLIST; prevZero = true; return null;
+                default:
+                    return take(); // let protocol decide
+            }
+        }
+        switch (opcode) {
+            case 4:
+                return take();
+            case 3:
+                target = 6 + u16(2);
+                phase = PAYLOAD;
+                return (len == target) ? take() : null; // empty last block
+            default:                                    // ERROR / BCAST header done
+                phase = ZSTRING;
                 return null;
         }
     }
 
-    @Override
-    public byte[] encode(byte[] message) {
-        return message; // frames are already complete
+    private int u16(int at) {
+        return ((frame[at] & 0xff) << 8) | (frame[at + 1] & 0xff);
+    }
+
+    private void copy(ByteBuffer in, int n) {
+        if (n <= 0) return;
+        if (len + n > frame.length) frame = Arrays.copyOf(frame, Math.max(len + n, frame.length * 2));
+        in.get(frame, len, n);
+        len += n;
     }
 
     private byte[] take() {
-        byte[] out = frame.toByteArray();
-        frame.reset();
-        opcode = -1; state = 0; need = 2;
+        byte[] out = Arrays.copyOf(frame, len);
+        len = 0;
+        phase = FIXED; target = 2;
         return out;
     }
 }
@@ -0,0 +1,125 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.impl.tftp.metrics.LatencyHistogram;
+import bgu.spl.net.impl.tftp.metrics.MetricsRegistry;
+import bgu.spl.net.impl.tftp.telemetry.TelemetryClient;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ConnectionsImpl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server's metrics, scraped from {@code /metrics} when {@code -Dtftp.metrics-port} is set.
+ * Everything the protocol touches per message is a striped counter or histogram held in a
+ * static field; the rest is read from the shared state only when scraped.
+ */
+final class TftpMetrics {
+
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    // indexed by opcode; 0 stands for anything unknown
+    private static final String[] OPS = {"other", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "DIRQ", "LOGRQ", "DELRQ", "BCAST", "DISC", "OACK", "LIST"};
+    private static final LatencyHistogram[] PROCESS = new LatencyHistogram[OPS.length];
+    static {
+        for (int op = 0; op < OPS.length; op++) {
+            PROCESS[op] = REGISTRY.histogram("tftp_process_seconds",
+                    "Time to handle one client packet, by opcode.", "op", OPS[op]);
+        }
+    }
+
+    static final LatencyHistogram BLOCK_RTT = REGISTRY.histogram("tftp_block_rtt_seconds",
+            "Time from sending an RRQ window (or OACK) until the client acknowledges it.");
+
+    static final LongAdder BYTES_SENT = REGISTRY.counter("tftp_file_bytes_sent_total",
+            "File bytes sent in RRQ DATA blocks.");
+    static final LongAdder BYTES_RECEIVED = REGISTRY.counter("tftp_file_bytes_received_total",
+            "File bytes received in WRQ DATA blocks.");
+
+    static final Transfers READS = new Transfers("read");
+    static final Transfers WRITES = new Transfers("write");
+
+    private static final LongAdder[] ERRORS = new LongAdder[8];
+    static {
+        for (int code = 0; code < ERRORS.length; code++) {
+            ERRORS[code] = REGISTRY.counter("tftp_errors_sent_total",
+                    "ERROR packets sent to clients, by TFTP error code.", "code", Integer.toString(code));
+        }
+    }
+
+    private static volatile Connections<?> connections;
+
+    static {
+        REGISTRY.gauge("tftp_connections_open", "Client connections currently open.", () -> {
+            Connections<?> c = connections;
+            return (c instanceof ConnectionsImpl) ? ((ConnectionsImpl<?>) c).size() : 0;
+        });
+        REGISTRY.gauge("tftp_sessions", "Logged in users.", () -> ConnectionState.sessions.size());
+
+        REGISTRY.gauge("tftp_leases_active", "Files with a live lease.", () -> ConnectionState.leases.activeCount());
+        REGISTRY.counter("tftp_leases_acquired_total", "Leases granted.", () -> ConnectionState.leases.acquiredCount());
+        REGISTRY.counter("tftp_leases_conflicts_total", "Requests refused because of another lease.",
+                () -> ConnectionState.leases.conflictCount());
+        REGISTRY.counter("tftp_leases_expired_total", "Leases dropped after their holder stalled.",
+                () -> ConnectionState.leases.expiredCount());
+
+        REGISTRY.counter("tftp_bcast_published_total", "BCAST packets published.",
+                () -> ConnectionState.broadcasts.publishedCount());
+        REGISTRY.counter("tftp_bcast_delivered_total", "BCAST packets handed to a connection.",
+                () -> ConnectionState.broadcasts.deliveredCount());
+        REGISTRY.counter("tftp_bcast_dropped_total", "BCAST packets dropped for slow connections.",
+                () -> ConnectionState.broadcasts.droppedCount());
+        REGISTRY.counter("tftp_bcast_slow_disconnects_total", "Connections closed for not keeping up with BCAST.",
+                () -> ConnectionState.broadcasts.slowDisconnectCount());
+        REGISTRY.counter("tftp_bcast_refused_total", "BCAST batches a backed-up connection didn't take.",
+                () -> ConnectionState.broadcasts.refusedCount());
+        REGISTRY.gauge("tftp_bcast_pending", "BCAST packets queued and not yet sent.",
+                () -> ConnectionState.broadcasts.pendingCount());
+
+        REGISTRY.gauge("tftp_dirq_listings", "User folders whose listing is held in memory.",
+                () -> ConnectionState.dirs.size());
+        REGISTRY.counter("tftp_dirq_scans_total", "Folder scans done for DIRQ.", () -> ConnectionState.dirs.scanCount());
+        REGISTRY.counter("tftp_dirq_cache_hits_total", "DIRQs answered from an already encoded listing.",
+                () -> ConnectionState.dirs.hitCount());
+        REGISTRY.counter("tftp_dirq_watch_events_total", "Folder changes reported by the file system watcher.",
+                () -> ConnectionState.dirs.eventCount());
+    }
+
+    private TftpMetrics() {}
+
+    /** one kind of transfer; the active gauge is derived, so there is nothing to keep in sync */
+    static final class Transfers {
+        final LongAdder started, completed, aborted, resumed;
+
+        Transfers(String dir) {
+            started = REGISTRY.counter("tftp_transfers_started_total", "Transfers started.", "dir", dir);
+            completed = REGISTRY.counter("tftp_transfers_completed_total", "Transfers completed.", "dir", dir);
+            aborted = REGISTRY.counter("tftp_transfers_aborted_total", "Transfers abandoned before the end.", "dir", dir);
+            resumed = REGISTRY.counter("tftp_transfers_resumed_total", "Transfers continued from an offset.", "dir", dir);
+            REGISTRY.gauge("tftp_transfers_active", "Transfers in progress.",
+                    () -> started.sum() - completed.sum() - aborted.sum(), "dir", dir);
+        }
+    }
+
+    static void processed(int opcode, long nanos) {
+        PROCESS[(opcode > 0 && opcode < OPS.length) ? opcode : 0].recordNanos(nanos);
+    }
+
+    static void errorSent(int code) {
+        if (code >= 0 && code < ERRORS.length) ERRORS[code].increment();
+    }
+
+    /** every server hands the same Connections to all its protocols */
+    static void watch(Connections<?> c) {
+        if (connections != c) connections = c;
+    }
+
+    static void watch(TelemetryClient tele) {
+        REGISTRY.counter("telemetry_events_total", "Telemetry events queued.", tele::enqueuedCount);
+        REGISTRY.counter("telemetry_events_dropped_total", "Telemetry events dropped because the ring was full.",
+                tele::droppedCount);
+        REGISTRY.counter("telemetry_datagrams_total", "Telemetry datagrams sent.", tele::datagramCount);
+        REGISTRY.counter("telemetry_send_errors_total", "Telemetry datagrams that failed to send.",
+                tele::sendErrorCount);
+        REGISTRY.gauge("telemetry_queued", "Telemetry events waiting to be sent.", tele::queuedCount);
+    }
+}
@@ -2,19 +2,17 @@ package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Frame;
+import bgu.spl.net.srv.FramePool;
 import bgu.spl.net.impl.tftp.telemetry.TelemetryClient;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-
-class ConnectionState {
-    static final ConcurrentHashMap<Integer, String> userByConn = new ConcurrentHashMap<>();
-    static final Set<String> uploadingNow = Collections.synchronizedSet(new HashSet<>()); // names only (per user handled by folder)
-    static final ConcurrentHashMap<Integer, String> currentUpload = new ConcurrentHashMap<>(); // connId -> file name
-}
 
 public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
 
@@ -26,32 +24,56 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
             System.getProperty("telemetry.host", "127.0.0.1"),
             Integer.getInteger("telemetry.port", 9099)
     );
+    static { TftpMetrics.watch(TELE); }
+
+    // -------- option negotiation (RFC 2348 blksize, RFC 7440 windowsize) --------
+    static final int DEFAULT_BLKSIZE = 512;
+    private static final int MIN_BLKSIZE = 8;
+    private static final int MAX_BLKSIZE = Math.max(MIN_BLKSIZE,
+            Math.min(65464, Integer.getInteger("tftp.max-blksize", 65464)));
+    private static final int MAX_WINDOW = Math.max(1, Integer.getInteger("tftp.max-windowsize", 64));
+
+    // -------- LIST paging --------
+    private static final int DEFAULT_PAGE = 100;
+    private static final int MAX_PAGE = Math.max(1, Integer.getInteger("tftp.list-max-page", 1000));
+
+    // pooled frames hold any reply but file data (sent from the file) and BCAST (shared by all targets)
+    private static final int DIRQ_CHUNK = 512;
+    private static final int FRAME_SIZE = 6 + DIRQ_CHUNK;
 
     // -------- instance state --------
     private Connections<byte[]> conns;
     private int id;
     private boolean terminate = false;
+    // a full RRQ window plus the odd ACK/ERROR in flight; the handler recycles frames once written
+    private final FramePool frames = new FramePool(FRAME_SIZE, MAX_WINDOW + 4);
 
-    private FileInputStream rrqIn = null;
+    private FileChannel rrqFile = null;     // blocks are sent as file regions, never copied onto the heap
+    private String rrqName = null;
+    private long rrqPos = 0;
+    private long rrqSize = 0;
     private int sendBlock = 0;
-    private List<String> dirNames = null;
-    private int dirCursor = 0;
+    private int blksize = DEFAULT_BLKSIZE;   // negotiated for the current RRQ/WRQ
+    private int windowSize = 1;              // blocks sent per ACK
+    private int unacked = 0;                 // WRQ blocks received since our last ACK
+    private long windowSentAt = 0;           // nanoTime of the last RRQ window (or OACK), for the RTT histogram
+    private UploadSession upload = null;     // WRQ in progress on this connection
+    private ByteBuffer uploadBuf = null;     // direct staging buffer, kept for the next upload
+    private byte[] dirListing = null;        // DIRQ or LIST reply; a DIRQ's is shared, read only
+    private int dirPos = 0;
 
     // -------- helpers --------
     private static short bytesToShort(byte hi, byte lo) {
         return (short) (((hi & 0xff) << 8) | (lo & 0xff));
     }
-    private static byte[] shortToBytes(int v) {
-        return new byte[]{(byte) ((v >> 8) & 0xff), (byte) (v & 0xff)};
-    }
     private static byte[] op(short op) { return new byte[]{(byte) (op >> 8), (byte) (op & 0xff)}; }
     private static void safeClose(Closeable c){ try { if (c != null) c.close(); } catch (IOException ignore) {} }
 
-    private boolean isLoggedIn() { return ConnectionState.userByConn.containsKey(id); }
+    private boolean isLoggedIn() { return ConnectionState.sessions.isLoggedIn(id); }
 
     /** Per-user folder inside BASE, created if missing */
     private Path userDir() {
-        String u = ConnectionState.userByConn.get(id);
+        String u = ConnectionState.sessions.userOf(id);
         if (u == null || u.isBlank()) return null;
         try {
             Path p = BASE.resolve(u).normalize();
@@ -68,18 +90,104 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
         return new String(msg, from, i - from, StandardCharsets.UTF_8);
     }
 
+    /** consecutive '\0'-terminated strings starting at `from`, up to the first empty one */
+    private List<String> readZStrings(byte[] msg, int from) {
+        List<String> out = new ArrayList<>();
+        int i = from;
+        while (i < msg.length && msg[i] != 0) {
+            String s = readZString(msg, i);
+            if (s == null) break;
+            out.add(s);
+            i += s.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return out;
+    }
+
+    /** RRQ/WRQ file name: legacy "<name>\0" or extended "\0<name>\0<options>\0" */
+    private String requestName(byte[] msg) {
+        if (msg.length > 2 && msg[2] == 0) return readZString(msg, 3);
+        return readZString(msg, 2);
+    }
+
+    /** options of an extended RRQ/WRQ by lower-case name, or null for a legacy request */
+    private Map<String, String> requestOptions(byte[] msg) {
+        if (msg.length < 3 || msg[2] != 0) return null;
+        List<String> parts = readZStrings(msg, 3); // name, opt, value, opt, value...
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 1; i + 1 < parts.size(); i += 2) {
+            opts.put(parts.get(i).toLowerCase(Locale.ROOT), parts.get(i + 1).trim());
+        }
+        return opts;
+    }
+
+    /**
+     * Applies blksize and windowsize and returns the options accepted so far, to be answered
+     * with an OACK, or null for a legacy request (512-byte blocks, one ACK per block).
+     * Unknown or malformed options are ignored and values above our limits are lowered.
+     */
+    private Map<String, String> negotiate(Map<String, String> opts) {
+        blksize = DEFAULT_BLKSIZE;
+        windowSize = 1;
+        if (opts == null) return null;
+
+        Map<String, String> accepted = new LinkedHashMap<>();
+        Integer v = intOption(opts, "blksize");
+        if (v != null && v >= MIN_BLKSIZE) {
+            blksize = Math.min(v, MAX_BLKSIZE);
+            accepted.put("blksize", Integer.toString(blksize));
+        }
+        v = intOption(opts, "windowsize");
+        if (v != null && v >= 1) {
+            windowSize = Math.min(v, MAX_WINDOW);
+            accepted.put("windowsize", Integer.toString(windowSize));
+        }
+        return accepted;
+    }
+
+    private static Integer intOption(Map<String, String> opts, String name) {
+        String v = opts.get(name);
+        if (v == null) return null;
+        try { return Integer.parseInt(v); } catch (NumberFormatException e) { return null; }
+    }
+
+    /**
+     * The {@code offset} a resumed RRQ may start from: the one asked for if it is within the
+     * file and {@code offsetcrc} matches what the client already has, otherwise 0.
+     */
+    private static long resumeOffset(Map<String, String> opts, FileChannel file) throws IOException {
+        long offset;
+        try { offset = Long.parseLong(opts.get("offset")); } catch (NumberFormatException e) { return 0; }
+        return PrefixChecksum.matches(file, offset, opts.get("offsetcrc")) ? offset : 0;
+    }
+
+    private static byte[] oack(Map<String, String> accepted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        byte[] op = op((short)11);
+        out.write(op, 0, op.length);
+        for (Map.Entry<String, String> e : accepted.entrySet()) {
+            byte[] k = e.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] v = e.getValue().getBytes(StandardCharsets.UTF_8);
+            out.write(k, 0, k.length); out.write(0);
+            out.write(v, 0, v.length); out.write(0);
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
     // -------- protocol lifecycle --------
     @Override
     public void start(int connectionId, Connections<byte[]> connections) {
         this.id = connectionId;
         this.conns = connections;
         this.terminate = false;
+        TftpMetrics.watch(connections);
     }
 
     @Override
     public void process(byte[] msg) {
         if (msg.length < 2) return;
         short opcode = bytesToShort(msg[0], msg[1]);
+        long t0 = System.nanoTime();
         switch (opcode) {
             case 7:  handleLOGRQ(msg); break;
             case 6:  handleDIRQ(); break;
@@ -89,22 +197,34 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
             case 4:  handleACK(msg); break;
             case 8:  handleDELRQ(msg); break;
             case 10: handleDISC(); break;
+            case 12: handleLIST(msg); break;
             default: sendERROR(4, "Illegal TFTP operation – Unknown Opcode.");
         }
+        TftpMetrics.processed(opcode, System.nanoTime() - t0);
     }
 
     @Override
     public boolean shouldTerminate() { return terminate; }
 
+    @Override
+    public void connectionClosed() {
+        // the client went away without DISC (after DISC this finds nothing left to do)
+        abortRrq();
+        suspendUpload();
+        if (!terminate) conns.disconnect(id);
+        ConnectionState.broadcasts.forget(id);
+        String u = ConnectionState.sessions.logout(id);
+        if (u != null) TELE.log("DISC", u, null, null, null);
+    }
+
     // -------- handlers --------
     private void handleLOGRQ(byte[] msg) {
         String user = readZString(msg, 2);
         if (user == null || user.isEmpty()) { sendERROR(0, "Bad username"); return; }
-        if (isLoggedIn() || ConnectionState.userByConn.containsValue(user)) {
+        if (!ConnectionState.sessions.tryLogin(user, id)) {
             sendERROR(7, "User already logged in – Login username already connected.");
             return;
         }
-        ConnectionState.userByConn.put(id, user);
         try { Files.createDirectories(BASE.resolve(user)); } catch (Exception ignore) {}
         sendACK(0);
         TELE.log("LOGIN", user, null, null, null);
@@ -115,93 +235,222 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
         Path dir = userDir();
         if (dir == null) { sendERROR(6, "Not logged in"); return; }
 
-        File[] files = dir.toFile().listFiles();
-        if (files == null) files = new File[0];
+        // uploads are staged in a sub folder, so every regular file here is complete
+        try {
+            dirListing = ConnectionState.dirs.encoded(ConnectionState.sessions.userOf(id), dir);
+        } catch (IOException e) {
+            sendERROR(2, "Access violation – cannot read directory.");
+            return;
+        }
+        dirPos = 0;
+        sendBlock = 0;
+        sendNextDirqChunk();
+    }
 
-        List<String> names = new ArrayList<>();
-        synchronized (ConnectionState.uploadingNow) {
-            for (File f : files) {
-                if (f.isFile() && !ConnectionState.uploadingNow.contains(f.getName())) {
-                    names.add(f.getName());
-                }
+    /**
+     * LIST: 12 (option \0 value \0)* \0, options with an empty value left out:
+     * {@code prefix}, {@code after} (the cursor from the previous page), {@code limit}, and
+     * {@code meta} = 1 for each file's size and mtime. Answered like DIRQ, with DATA blocks
+     * holding the next page's cursor (empty on the last page) followed by one entry per
+     * file: {@code name\0} or {@code name\0size\0mtime-millis\0}, all in name order.
+     */
+    private void handleLIST(byte[] msg) {
+        if (!isLoggedIn()) { sendERROR(6, "Not logged in – operation requires login."); return; }
+        Path dir = userDir();
+        if (dir == null) { sendERROR(6, "Not logged in"); return; }
+
+        List<String> parts = readZStrings(msg, 2);
+        String prefix = "", after = null;
+        int limit = DEFAULT_PAGE;
+        boolean meta = false;
+        for (int i = 0; i + 1 < parts.size(); i += 2) {
+            String v = parts.get(i + 1);
+            switch (parts.get(i).toLowerCase(Locale.ROOT)) {
+                case "prefix": prefix = v; break;
+                case "after":  after = v; break;
+                case "meta":   meta = v.equals("1"); break;
+                case "limit":
+                    try { limit = Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(v.trim()))); } catch (NumberFormatException ignore) {}
+                    break;
+                default: // unknown options are ignored, as in RRQ/WRQ
             }
         }
-        dirNames = names;
-        dirCursor = 0;
+
+        List<String> names;
+        try {
+            names = ConnectionState.dirs.page(ConnectionState.sessions.userOf(id), dir, prefix, after, limit);
+        } catch (IOException e) {
+            sendERROR(2, "Access violation – cannot read directory.");
+            return;
+        }
+        boolean more = names.size() > limit;
+        if (more) names = names.subList(0, limit);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(names.size() * (meta ? 48 : 24) + 32);
+        writeZ(out, more ? names.get(names.size() - 1) : "");
+        for (String name : names) {
+            if (!meta) { writeZ(out, name); continue; }
+            BasicFileAttributes a;
+            try {
+                a = Files.readAttributes(dir.resolve(name), BasicFileAttributes.class);
+            } catch (IOException e) {
+                continue; // deleted since it was listed
+            }
+            writeZ(out, name);
+            writeZ(out, Long.toString(a.size()));
+            writeZ(out, Long.toString(a.lastModifiedTime().toMillis()));
+        }
+        dirListing = out.toByteArray();
+        dirPos = 0;
         sendBlock = 0;
         sendNextDirqChunk();
     }
 
+    private static void writeZ(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.write(b, 0, b.length);
+        out.write(0);
+    }
+
     private void handleRRQ(byte[] msg) {
         if (!isLoggedIn()) { sendERROR(6, "Not logged in – operation requires login."); return; }
-        String name = readZString(msg, 2);
+        String name = requestName(msg);
+        if (name == null || name.isEmpty()) { sendERROR(1, "File not found"); return; }
         Path dir = userDir();
         if (dir == null) { sendERROR(6, "Not logged in"); return; }
         File f = dir.resolve(name).toFile();
         if (!f.exists() || !f.isFile()) { sendERROR(1, "File not found"); return; }
+        abortRrq();
+        String user = ConnectionState.sessions.userOf(id);
+        if (!ConnectionState.leases.tryAcquire(user, name, id, LeaseRegistry.Mode.READ)) {
+            sendERROR(2, "Access violation – file is in use.");
+            return;
+        }
         try {
-            rrqIn = new FileInputStream(f);
+            rrqFile = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            rrqName = name;
+            rrqPos = 0;
+            rrqSize = rrqFile.size();
             sendBlock = 0;
-            sendNextRrqChunk(); // will start DATA streaming
+            TftpMetrics.READS.started.increment();
+            Map<String, String> opts = requestOptions(msg);
+            Map<String, String> accepted = negotiate(opts);
+            if (accepted != null && opts.containsKey("offset")) {
+                // block 1 starts at the offset; 0 tells the client to start over
+                rrqPos = resumeOffset(opts, rrqFile);
+                accepted.put("offset", Long.toString(rrqPos));
+                if (rrqPos > 0) TftpMetrics.READS.resumed.increment();
+            }
+            if (accepted != null) {
+                windowSentAt = System.nanoTime();
+                conns.send(id, oack(accepted)); // client answers with ACK 0
+            } else {
+                sendRrqWindow();      // will start DATA streaming
+            }
         } catch (IOException e) {
+            if (rrqFile != null) abortRrq();
+            else ConnectionState.leases.release(user, name, id);
             sendERROR(2, "Access violation / open failed");
         }
     }
 
     private void handleWRQ(byte[] msg) {
         if (!isLoggedIn()) { sendERROR(6, "Not logged in – operation requires login."); return; }
-        String name = readZString(msg, 2);
+        String name = requestName(msg);
+        if (name == null || name.isEmpty()) { sendERROR(0, "Bad file name"); return; }
         Path dir = userDir();
         if (dir == null) { sendERROR(6, "Not logged in"); return; }
         File f = dir.resolve(name).toFile();
-        synchronized (ConnectionState.uploadingNow) {
-            if (f.exists() || ConnectionState.uploadingNow.contains(name)) {
-                sendERROR(5, "File already exists – File name exists on WRQ.");
-                return;
+        abortUpload();
+        String user = ConnectionState.sessions.userOf(id);
+        if (f.exists() || !ConnectionState.leases.tryAcquire(user, name, id, LeaseRegistry.Mode.WRITE)) {
+            sendERROR(5, "File already exists – File name exists on WRQ.");
+            return;
+        }
+        unacked = 0;
+        Map<String, String> opts = requestOptions(msg);
+        Map<String, String> accepted = negotiate(opts);
+        // resume=1: carry on with what a lost connection left behind; the client checks the
+        // offset and checksum we answer with, and sends a plain WRQ instead if they don't match
+        boolean resume = accepted != null && "1".equals(opts.get("resume"));
+        if (uploadBuf == null || uploadBuf.capacity() < blksize) uploadBuf = ByteBuffer.allocateDirect(blksize);
+        try {
+            upload = resume ? UploadSession.resume(name, f.toPath(), uploadBuf)
+                            : UploadSession.open(name, f.toPath(), uploadBuf);
+            TftpMetrics.WRITES.started.increment();
+            if (resume) {
+                accepted.put("offset", Long.toString(upload.offset()));
+                if (upload.offset() > 0) {
+                    accepted.put("offsetcrc", upload.offsetChecksum());
+                    TftpMetrics.WRITES.resumed.increment();
+                }
             }
-            ConnectionState.uploadingNow.add(name);
-            ConnectionState.currentUpload.put(id, name);
+        } catch (IOException e) {
+            if (upload != null) abortUpload();
+            else ConnectionState.leases.release(user, name, id);
+            sendERROR(2, "Access violation / open failed");
+            return;
         }
-        sendACK(0); // client should start sending DATA 1..N
+        if (accepted != null) conns.send(id, oack(accepted)); // OACK replaces ACK 0
+        else sendACK(0); // client should start sending DATA 1..N
     }
 
     private void handleDATA(byte[] msg) {
         int size  = bytesToShort(msg[2], msg[3]) & 0xffff;
         int block = bytesToShort(msg[4], msg[5]) & 0xffff;
-        byte[] data = new byte[size];
-        if (size > 0) System.arraycopy(msg, 6, data, 0, size);
 
         if (!isLoggedIn()) { sendERROR(6, "Not logged in"); return; }
+        if (upload == null) { sendERROR(2, "Unexpected DATA – no WRQ in progress"); return; }
 
-        String fname = ConnectionState.currentUpload.get(id);
-        if (fname == null) { sendERROR(2, "Unexpected DATA – no WRQ in progress"); return; }
-
-        Path dir = userDir();
-        if (dir == null) { sendERROR(6, "Not logged in"); return; }
-        File target = dir.resolve(fname).toFile();
-
-        try (FileOutputStream out = new FileOutputStream(target, true)) {
-            if (size > 0) out.write(data);
+        String user = ConnectionState.sessions.userOf(id);
+        boolean last = size < blksize;
+        long length = 0;
+        try {
+            upload.write(msg, 6, size);
+            TftpMetrics.BYTES_RECEIVED.add(size);
+            if (last) {
+                length = upload.finish(); // on disk, under its real name, before we ACK it
+                ConnectionState.dirs.added(user, upload.name());
+            }
+        } catch (FileAlreadyExistsException e) {
+            ConnectionState.leases.release(user, upload.name(), id);
+            upload = null; // finish() already dropped the temp file
+            TftpMetrics.WRITES.aborted.increment();
+            sendERROR(5, "File already exists – File name exists on WRQ.");
+            return;
         } catch (IOException e) {
+            abortUpload();
             sendERROR(2, "Write failed");
             return;
         }
 
-        sendACK(block);
+        if (last || ++unacked >= windowSize) { // one ACK per window
+            unacked = 0;
+            sendACK(block);
+        }
 
-        if (size < 512) {
-            ConnectionState.uploadingNow.remove(fname);
-            ConnectionState.currentUpload.remove(id);
-            String user = ConnectionState.userByConn.get(id);
-            TELE.wrqComplete(user, fname, target.length());
+        if (last) {
+            String fname = upload.name();
+            upload = null;
+            TftpMetrics.WRITES.completed.increment();
+            ConnectionState.leases.release(user, fname, id);
+            TELE.wrqComplete(user, fname, length);
             bcast((byte)1, fname); // add
+        } else {
+            ConnectionState.leases.renew(user, upload.name(), id);
         }
     }
 
     private void handleACK(byte[] msg) {
-        if (rrqIn != null) {
-            sendNextRrqChunk();
-        } else if (dirNames != null) {
+        int block = (msg.length >= 4) ? (bytesToShort(msg[2], msg[3]) & 0xffff) : -1;
+        if (rrqFile != null) {
+            // next window once its last block is acknowledged; lock-step clients just advance
+            if (windowSize == 1 || block == (sendBlock & 0xffff)) {
+                if (windowSentAt != 0) TftpMetrics.BLOCK_RTT.recordNanos(System.nanoTime() - windowSentAt);
+                ConnectionState.leases.renew(ConnectionState.sessions.userOf(id), rrqName, id);
+                sendRrqWindow();
+            }
+        } else if (dirListing != null) {
             sendNextDirqChunk();
         }
     }
@@ -209,119 +458,133 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
     private void handleDELRQ(byte[] msg) {
         if (!isLoggedIn()) { sendERROR(6, "Not logged in – operation requires login."); return; }
         String name = readZString(msg, 2);
-        synchronized (ConnectionState.uploadingNow) {
-            if (ConnectionState.uploadingNow.contains(name)) {
-                sendERROR(2, "Access violation – file is uploading");
-                return;
-            }
-        }
         Path dir = userDir();
         if (dir == null) { sendERROR(6, "Not logged in"); return; }
         File f = dir.resolve(name).toFile();
         if (!f.exists() || !f.isFile()) { sendERROR(1, "File not found – DELRQ of non-existing file."); return; }
-        if (!f.delete()) { sendERROR(2, "Delete failed"); return; }
+        String user = ConnectionState.sessions.userOf(id);
+        if (!ConnectionState.leases.tryAcquire(user, name, id, LeaseRegistry.Mode.WRITE)) {
+            sendERROR(2, "Access violation – file is in use.");
+            return;
+        }
+        try {
+            if (!f.delete()) { sendERROR(2, "Delete failed"); return; }
+            ConnectionState.dirs.removed(user, name);
+        } finally {
+            ConnectionState.leases.release(user, name, id);
+        }
         sendACK(0);
-        String user = ConnectionState.userByConn.get(id);
         TELE.delComplete(user, name);
         bcast((byte)0, name); // del
     }
 
     private void handleDISC() {
+        abortRrq();
+        abortUpload(); // an unfinished upload is dropped rather than left half written
         sendACK(0);
         terminate = true;
 
-        String fname = ConnectionState.currentUpload.remove(id);
-        if (fname != null) {
-            ConnectionState.uploadingNow.remove(fname);
-        }
-
         conns.disconnect(id);
-        String u = ConnectionState.userByConn.remove(id);
+        ConnectionState.broadcasts.forget(id);
+        String u = ConnectionState.sessions.logout(id);
         TELE.log("DISC", u, null, null, null);
     }
 
-    // -------- streaming helpers --------
-    private void sendNextRrqChunk() {
-        try {
-            byte[] buf = new byte[512];
-            int n = (rrqIn != null) ? rrqIn.read(buf) : -1;
-            if (n < 0) n = 0;
-            sendBlock++;
-
-            ByteArrayOutputStream out = new ByteArrayOutputStream(6 + n);
-            byte[] op = op((short)3);
-            out.write(op, 0, op.length);
-            byte[] sz = shortToBytes(n);
-            out.write(sz, 0, sz.length);
-            byte[] blk = shortToBytes(sendBlock);
-            out.write(blk, 0, blk.length);
-            if (n > 0) out.write(buf, 0, n);
-
-            conns.send(id, out.toByteArray());
-
-            if (n < 512) {
-                safeClose(rrqIn); rrqIn = null; sendBlock = 0;
-                String user = ConnectionState.userByConn.get(id);
-                TELE.rrqComplete(user, null); // file name not tracked here; optional to add if you track it
-            }
-        } catch (IOException e) {
-            sendERROR(2, "Read failed");
-            safeClose(rrqIn);
-            rrqIn = null; sendBlock = 0;
-        }
+    /** keeps the temp file of an unfinished WRQ, so a WRQ with resume=1 can continue it */
+    private void suspendUpload() {
+        if (upload == null) return;
+        upload.suspend();
+        TftpMetrics.WRITES.aborted.increment();
+        ConnectionState.leases.release(ConnectionState.sessions.userOf(id), upload.name(), id);
+        upload = null;
     }
 
-    private void sendNextDirqChunk() {
-        if (dirNames == null) return;
-
-        ByteArrayOutputStream payload = new ByteArrayOutputStream(512);
+    /** deletes the temp file of an unfinished WRQ */
+    private void abortUpload() {
+        if (upload == null) return;
+        upload.abort();
+        TftpMetrics.WRITES.aborted.increment();
+        ConnectionState.leases.release(ConnectionState.sessions.userOf(id), upload.name(), id);
+        upload = null;
+    }
 
-        while (dirCursor < dirNames.size()) {
-            byte[] name = dirNames.get(dirCursor).getBytes(StandardCharsets.UTF_8);
-            if (payload.size() + name.length + 1 > 512) break; // +1 for '\0'
-            payload.write(name, 0, name.length);
-            payload.write(0);
-            dirCursor++;
+    // -------- streaming helpers --------
+    private void sendRrqWindow() {
+        windowSentAt = System.nanoTime();
+        for (int i = 0; i < windowSize && rrqFile != null; i++) {
+            sendNextRrqChunk();
         }
+    }
 
+    private void sendNextRrqChunk() {
+        int n = (int) Math.max(0, Math.min(blksize, rrqSize - rrqPos));
+        boolean last = n < blksize;
         sendBlock++;
-        byte[] data = payload.toByteArray();
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream(6 + data.length);
-        byte[] op = op((short)3);
-        out.write(op, 0, op.length);
-        byte[] sz = shortToBytes(data.length);
-        out.write(sz, 0, sz.length);
-        byte[] blk = shortToBytes(sendBlock);
-        out.write(blk, 0, blk.length);
-        if (data.length > 0) out.write(data, 0, data.length);
+        Frame f = frames.lease();
+        f.buffer().putShort((short) 3).putShort((short) n).putShort((short) sendBlock);
+        // the handler writes the header and then transfers the block straight from the file;
+        // the last frame closes the file once it is on the wire
+        conns.sendFrame(id, f.attach(rrqFile, rrqPos, n, last));
+        rrqPos += n;
+        TftpMetrics.BYTES_SENT.add(n);
+
+        if (last) {
+            String user = ConnectionState.sessions.userOf(id);
+            ConnectionState.leases.release(user, rrqName, id);
+            TELE.rrqComplete(user, rrqName);
+            TftpMetrics.READS.completed.increment();
+            rrqFile = null; rrqName = null; sendBlock = 0; windowSentAt = 0;
+        }
+    }
 
-        conns.send(id, out.toByteArray());
+    /** drops an unfinished download; the file is closed after the blocks already queued for it */
+    private void abortRrq() {
+        if (rrqFile == null) return;
+        conns.sendFrame(id, frames.lease().attach(rrqFile, rrqPos, 0, true));
+        ConnectionState.leases.release(ConnectionState.sessions.userOf(id), rrqName, id);
+        TftpMetrics.READS.aborted.increment();
+        rrqFile = null;
+        rrqName = null;
+        sendBlock = 0;
+        windowSentAt = 0;
+    }
+
+    /** the listing is cut every DIRQ_CHUNK bytes, names too; a shorter block (maybe empty) ends it */
+    private void sendNextDirqChunk() {
+        if (dirListing == null) return;
 
-        if (data.length < 512) {
-            dirNames = null;
-            dirCursor = 0;
+        int size = Math.min(DIRQ_CHUNK, dirListing.length - dirPos);
+        sendBlock++;
+        Frame f = frames.lease();
+        f.buffer().putShort((short) 3).putShort((short) size).putShort((short) sendBlock)
+                .put(dirListing, dirPos, size);
+        conns.sendFrame(id, f);
+        dirPos += size;
+
+        if (size < DIRQ_CHUNK) {
+            dirListing = null;
+            dirPos = 0;
             sendBlock = 0;
         }
     }
 
     // -------- wire helpers --------
     private void sendACK(int block) {
-        byte[] b = shortToBytes(block);
-        conns.send(id, new byte[]{0,4, b[0], b[1]});
-        String u = ConnectionState.userByConn.get(id);
+        Frame f = frames.lease();
+        f.buffer().putShort((short) 4).putShort((short) block);
+        conns.sendFrame(id, f);
+        String u = ConnectionState.sessions.userOf(id);
         if (u != null) TELE.ack(u, null, block);
     }
 
     private void sendERROR(int code, String msg) {
         byte[] m = msg.getBytes(StandardCharsets.UTF_8);
-        byte[] out = new byte[2 + 2 + m.length + 1];
-        out[0]=0; out[1]=5;
-        out[2]=0; out[3]=(byte)code;
-        System.arraycopy(m, 0, out, 4, m.length);
-        out[out.length-1]=0;
-        conns.send(id, out);
-        String u = ConnectionState.userByConn.get(id);
+        Frame f = frames.lease(2 + 2 + m.length + 1);
+        f.buffer().putShort((short) 5).putShort((short) code).put(m).put((byte) 0);
+        conns.sendFrame(id, f);
+        TftpMetrics.errorSent(code);
+        String u = ConnectionState.sessions.userOf(id);
         TELE.error(u, null, code, msg);
     }
 
@@ -333,9 +596,8 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
         System.arraycopy(b, 0, out, 3, b.length);
         out[out.length-1]=0;
 
-        for (int connId : new ArrayList<>(ConnectionState.userByConn.keySet())) {
-            conns.send(connId, out);
-        }
+        // fan-out and socket writes happen on the dispatcher's threads, never on the uploader's
+        ConnectionState.broadcasts.publish(conns, out, ConnectionState.sessions.userOf(id));
         TELE.log(flag==1 ? "BCAST_ADD" : "BCAST_DEL", "", name, null, null);
     }
 }
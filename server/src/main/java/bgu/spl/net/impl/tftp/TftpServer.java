@@ -1,18 +1,51 @@
 package bgu.spl.net.impl.tftp;
 
+import bgu.spl.net.impl.tftp.metrics.MetricsHttpServer;
 import bgu.spl.net.srv.Server;
 
+import java.io.IOException;
+
 public class TftpServer {
     public static void main(String[] args) {
         int port = 7777;
         if (args != null && args.length > 0) {
             try { port = Integer.parseInt(args[0]); } catch (Exception ignore) {}
         }
+        // second arg picks the server mode: "tpc" (default), "vthreads" or "reactor"
+        String mode = (args != null && args.length > 1) ? args[1] : "tpc";
+
+        // Prometheus endpoint, off unless a port is given
+        int metricsPort = Integer.getInteger("tftp.metrics-port", 0);
+        if (metricsPort > 0) {
+            String metricsHost = System.getProperty("tftp.metrics-host", "127.0.0.1");
+            try {
+                MetricsHttpServer.start(TftpMetrics.REGISTRY, metricsHost, metricsPort);
+                System.out.println("Metrics on http://" + metricsHost + ":" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint not started: " + e.getMessage());
+            }
+        }
+
         // run server
-        Server.threadPerClient(
-                port,
-                TftpProtocol::new,
-                TftpEncoderDecoder::new
-        ).serve();
+        if (mode.equalsIgnoreCase("reactor")) {
+            Server.reactor(
+                    Runtime.getRuntime().availableProcessors(),
+                    port,
+                    TftpProtocol::new,
+                    TftpEncoderDecoder::new
+            ).serve();
+        } else if (mode.equalsIgnoreCase("vthreads")) {
+            Server.virtualThreadPerClient(
+                    port,
+                    TftpProtocol::new,
+                    TftpEncoderDecoder::new
+            ).serve();
+        } else {
+            Server.threadPerClient(
+                    port,
+                    TftpProtocol::new,
+                    TftpEncoderDecoder::new
+            ).serve();
+        }
     }
 }
@@ -0,0 +1,156 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One WRQ in progress. The data is staged in a temp file under the user's hidden
+ * {@value #STAGING_DIR} folder, which stays open from the WRQ until the last DATA block;
+ * every block is written through the same direct buffer. Only a complete file is linked
+ * to its real name, so DIRQ, DELRQ and the REST side never see a partial upload.
+ * <p>
+ * The temp file is named after the target, so an upload cut off by a lost connection can be
+ * {@link #resume resumed} by the next WRQ of the same name. Partials nobody came back for
+ * within {@code tftp.resume-ttl-ms} (a day by default) are deleted by a later WRQ; a WRQ
+ * only looks through the folder if nobody did for a TTL, so a partial may outlive it by up to
+ * another TTL.
+ */
+final class UploadSession {
+
+    static final String STAGING_DIR = ".uploads";
+    private static final long RESUME_TTL_MS = Long.getLong("tftp.resume-ttl-ms", 24 * 60 * 60 * 1000L);
+    // staging folder -> when dropExpired last went through it
+    private static final Map<Path, Long> LAST_SWEEP = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Path target;
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final long offset;
+
+    private UploadSession(String name, Path target, Path file, FileChannel channel, ByteBuffer buf, long offset) {
+        this.name = name;
+        this.target = target;
+        this.file = file;
+        this.channel = channel;
+        this.buf = buf;
+        this.offset = offset;
+    }
+
+    /**
+     * Starts an upload that will become {@code target} once finished, dropping any partial
+     * upload of the same name.
+     * @param buf direct buffer the blocks are staged in; owned by the caller and reused between uploads
+     */
+    static UploadSession open(String name, Path target, ByteBuffer buf) throws IOException {
+        Path file = stagingFile(target);
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new UploadSession(name, target, file, ch, buf, 0);
+    }
+
+    /**
+     * Like {@link #open}, but keeps what an earlier, interrupted upload of the same name
+     * left behind; the blocks that follow are appended to it.
+     */
+    static UploadSession resume(String name, Path target, ByteBuffer buf) throws IOException {
+        Path file = stagingFile(target);
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = ch.size();
+        ch.position(size);
+        return new UploadSession(name, target, file, ch, buf, size);
+    }
+
+    // not Files.createTempFile: its owner-only permissions would stick to the uploaded file
+    private static Path stagingFile(Path target) throws IOException {
+        Path staging = Files.createDirectories(target.getParent().resolve(STAGING_DIR));
+        dropExpired(staging);
+        // a fixed-length name whatever the target is called
+        String key = UUID.nameUUIDFromBytes(target.getFileName().toString().getBytes(StandardCharsets.UTF_8)).toString();
+        return staging.resolve("wrq-" + key + ".part");
+    }
+
+    private static void dropExpired(Path staging) {
+        long now = System.currentTimeMillis();
+        Long last = LAST_SWEEP.get(staging);
+        if (last != null && now - last < RESUME_TTL_MS) return;
+        LAST_SWEEP.put(staging, now); // two WRQs racing here both sweep, which is harmless
+        long cutoff = now - RESUME_TTL_MS;
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(staging, "wrq-*.part")) {
+            for (Path p : parts) {
+                try {
+                    FileTime t = Files.getLastModifiedTime(p);
+                    if (t.toMillis() < cutoff) Files.deleteIfExists(p);
+                } catch (IOException ignore) {
+                    // gone already, or someone else's problem
+                }
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    String name() { return name; }
+
+    /** bytes kept from an earlier upload; the first DATA block continues from here */
+    long offset() { return offset; }
+
+    /** checksum of the bytes kept, see {@link PrefixChecksum} */
+    String offsetChecksum() throws IOException { return PrefixChecksum.of(channel, offset); }
+
+    /** appends `len` bytes of `src` starting at `off` */
+    void write(byte[] src, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, buf.capacity());
+            buf.clear();
+            buf.put(src, off, n);
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flushes the file to disk and links it under its real name, which fails if that name is
+     * taken (a move would replace it). The temp file is deleted either way.
+     * @return the size of the uploaded file
+     * @throws FileAlreadyExistsException if another upload of the same name finished first
+     */
+    long finish() throws IOException {
+        try {
+            channel.force(true);
+            long size = channel.size();
+            channel.close();
+            Files.createLink(target, file);
+            try { Files.delete(file); } catch (IOException ignore) {} // the upload is in place; dropExpired gets it
+            return size;
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /** closes the temp file but keeps it, for a later {@link #resume} */
+    void suspend() {
+        try { channel.close(); } catch (IOException ignore) {}
+    }
+
+    /** closes and deletes the temp file */
+    void abort() {
+        try { channel.close(); } catch (IOException ignore) {}
+        try { Files.deleteIfExists(file); } catch (IOException ignore) {}
+    }
+}
@@ -0,0 +1,56 @@
+package bgu.spl.net.impl.tftp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in the spirit of HdrHistogram: every power of two of nanoseconds
+ * is split into {@link #SUB_BUCKETS} equal buckets, from 1 µs up to about 69 s, so recording is
+ * a leading-zero count and one striped increment, and the bucket bounds are never more than 50 % apart.
+ */
+public final class LatencyHistogram {
+
+    private static final int MIN_SHIFT = 10;  // everything under 2^10 ns (~1 µs) shares bucket 0
+    private static final int MAX_SHIFT = 36;  // everything from 2^36 ns (~69 s) up is overflow
+    private static final int SUB_BITS = 1;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** finite buckets; one more counts the overflow */
+    static final int BUCKETS = 1 + (MAX_SHIFT - MIN_SHIFT) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    public void recordNanos(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    static int index(long nanos) {
+        if (nanos < (1L << MIN_SHIFT)) return 0;
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        if (msb >= MAX_SHIFT) return BUCKETS;
+        int sub = (int) (nanos >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1); // the bits below the top one
+        return 1 + (msb - MIN_SHIFT) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the exclusive upper bound of finite bucket {@code i}, in nanoseconds */
+    static long upperBoundNanos(int i) {
+        if (i == 0) return 1L << MIN_SHIFT;
+        int msb = MIN_SHIFT + (i - 1) / SUB_BUCKETS;
+        int sub = (i - 1) % SUB_BUCKETS;
+        return (1L << msb) + ((long) (sub + 1) << (msb - SUB_BITS));
+    }
+
+    /** @return the count of each bucket, the overflow last; not atomic across buckets */
+    long[] snapshot() {
+        long[] out = new long[counts.length];
+        for (int i = 0; i < out.length; i++) out[i] = counts[i].sum();
+        return out;
+    }
+
+    long sumNanos() { return sumNanos.sum(); }
+}
@@ -0,0 +1,57 @@
+package bgu.spl.net.impl.tftp.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/** Serves {@code GET /metrics} for a Prometheus scraper, on one daemon thread. */
+public final class MetricsHttpServer {
+
+    private final HttpServer http;
+
+    private MetricsHttpServer(HttpServer http) {
+        this.http = http;
+    }
+
+    public static MetricsHttpServer start(MetricsRegistry registry, String host, int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        http.createContext("/metrics", ex -> handle(ex, registry));
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+        return new MetricsHttpServer(http);
+    }
+
+    private static void handle(HttpExchange ex, MetricsRegistry registry) throws IOException {
+        try {
+            if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if ("HEAD".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            ex.close();
+        }
+    }
+
+    public int port() { return http.getAddress().getPort(); }
+
+    public void stop() { http.stop(0); }
+}
@@ -0,0 +1,120 @@
+package bgu.spl.net.impl.tftp.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms, rendered in the Prometheus text format.
+ * <p>
+ * Metrics are meant to be registered once, up front, and then updated on the hot path
+ * without going through the registry: a counter is a plain {@link LongAdder}, a gauge or a
+ * counter kept elsewhere is read through a {@link LongSupplier} only when scraped.
+ * Labels are given as name/value pairs.
+ */
+public final class MetricsRegistry {
+
+    private static final class Family {
+        final String name, help, type;
+        final List<Child> children = new ArrayList<>();
+        Family(String name, String help, String type) { this.name = name; this.help = help; this.type = type; }
+    }
+
+    private static final class Child {
+        final String labels; // rendered, without braces
+        final Object metric; // LongAdder, LongSupplier or LatencyHistogram
+        Child(String labels, Object metric) { this.labels = labels; this.metric = metric; }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public LongAdder counter(String name, String help, String... labels) {
+        LongAdder c = new LongAdder();
+        register(name, help, "counter", labels, c);
+        return c;
+    }
+
+    /** a counter whose value is kept by someone else */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "counter", labels, value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    /** observations are exported in seconds */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        LatencyHistogram h = new LatencyHistogram();
+        register(name, help, "histogram", labels, h);
+        return h;
+    }
+
+    private synchronized void register(String name, String help, String type, String[] labels, Object metric) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("labels come in name/value pairs");
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!f.type.equals(type)) throw new IllegalArgumentException(name + " is already a " + f.type);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        f.children.add(new Child(sb.toString(), metric));
+    }
+
+    private static String escape(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** @return every metric in the Prometheus text exposition format, version 0.0.4 */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family f : families.values()) {
+            out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Child c : f.children) {
+                if (c.metric instanceof LatencyHistogram) {
+                    writeHistogram(out, f.name, c.labels, (LatencyHistogram) c.metric);
+                } else {
+                    long v = (c.metric instanceof LongAdder) ? ((LongAdder) c.metric).sum()
+                            : ((LongSupplier) c.metric).getAsLong();
+                    sample(out, f.name, c.labels, null, Long.toString(v));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, LatencyHistogram h) {
+        long[] counts = h.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += counts[i];
+            sample(out, name + "_bucket", labels, seconds(LatencyHistogram.upperBoundNanos(i)), Long.toString(cumulative));
+        }
+        cumulative += counts[LatencyHistogram.BUCKETS];
+        sample(out, name + "_bucket", labels, "+Inf", Long.toString(cumulative));
+        sample(out, name + "_sum", labels, null, seconds(h.sumNanos()));
+        sample(out, name + "_count", labels, null, Long.toString(cumulative));
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String le, String value) {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null) {
+                if (!labels.isEmpty()) out.append(',');
+                out.append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,27 @@
+package bgu.spl.net.impl.tftp.telemetry;
+
+import java.util.Map;
+
+/**
+ * Packs telemetry events into one datagram payload.
+ * Used by the sender thread only, so implementations need not be thread safe.
+ */
+interface BatchEncoder {
+
+    /**
+     * Appends an event unless that would make the batch bigger than its limit.
+     * An empty batch always accepts the event, however big.
+     * @return false if the event didn't fit; the caller sends {@link #finish()} and tries again
+     */
+    boolean add(long ts, String type, String user, String file, String msg, Map<String,Object> extra);
+
+    boolean isEmpty();
+
+    /** @return the payload of everything added so far, after which the batch is empty again */
+    byte[] finish();
+
+    static BatchEncoder forFormat(String format, int maxBytes) {
+        if ("binary".equalsIgnoreCase(format)) return new BinaryBatchEncoder(maxBytes);
+        return new JsonBatchEncoder(maxBytes);
+    }
+}
@@ -0,0 +1,130 @@
+package bgu.spl.net.impl.tftp.telemetry;
+
+import bgu.spl.net.telemetry.BinaryEventDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bgu.spl.net.telemetry.BinaryEventDecoder.*;
+
+/**
+ * Writes the compact format described in {@link BinaryEventDecoder}.
+ * Strings are interned per datagram, so a batch of ACKs for the same user and file
+ * carries each name once, and a lost datagram never breaks the next one.
+ */
+final class BinaryBatchEncoder implements BatchEncoder {
+
+    private final int maxBytes;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+    private final ByteArrayOutputStream event = new ByteArrayOutputStream(256);
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> added = new ArrayList<>(); // strings interned by the event being written
+    private long baseTs;
+    private int count;
+
+    BinaryBatchEncoder(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public boolean add(long ts, String type, String user, String file, String msg, Map<String,Object> extra) {
+        if (count == 0) baseTs = ts;
+        else if (count == 0xffff) return false;
+
+        event.reset();
+        added.clear();
+        int code = codeOf(type);
+        event.write(code);
+        if (code == CUSTOM) writeString(type);
+        writeVarLong(zigzag(ts - baseTs));
+        writeString(user);
+        writeString(file);
+        writeString(msg);
+        int n = (extra == null) ? 0 : extra.size();
+        writeVarLong(n);
+        if (n > 0) {
+            for (Map.Entry<String,Object> e : extra.entrySet()) {
+                writeString(e.getKey());
+                writeValue(e.getValue());
+            }
+        }
+
+        if (count > 0 && HEADER_SIZE + body.size() + event.size() > maxBytes) {
+            for (String s : added) ids.remove(s); // not sent, so not interned either
+            return false;
+        }
+        byte[] b = event.toByteArray();
+        body.write(b, 0, b.length);
+        count++;
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() { return count == 0; }
+
+    @Override
+    public byte[] finish() {
+        byte[] out = new byte[HEADER_SIZE + body.size()];
+        out[0] = MAGIC_0; out[1] = MAGIC_1; out[2] = VERSION; out[3] = 0;
+        for (int i = 0; i < 8; i++) out[4 + i] = (byte) (baseTs >>> (56 - 8 * i));
+        out[12] = (byte) (count >> 8); out[13] = (byte) count;
+        byte[] b = body.toByteArray();
+        System.arraycopy(b, 0, out, HEADER_SIZE, b.length);
+
+        body.reset();
+        ids.clear();
+        count = 0;
+        return out;
+    }
+
+    private static int codeOf(String type) {
+        if (type == null) return CUSTOM;
+        for (int i = 1; i < EVENT_TYPES.size(); i++) {
+            if (EVENT_TYPES.get(i).equals(type)) return i;
+        }
+        return CUSTOM;
+    }
+
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+
+    private void writeVarLong(long v) {
+        while ((v & ~0x7fL) != 0) {
+            event.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        event.write((int) v);
+    }
+
+    private void writeString(String s) {
+        if (s == null) { writeVarLong(0); return; }
+        Integer id = ids.get(s);
+        if (id != null) { writeVarLong(((long) id << 1) | 1); return; }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong((long) (b.length + 1) << 1);
+        event.write(b, 0, b.length);
+        ids.put(s, ids.size());
+        added.add(s);
+    }
+
+    private void writeValue(Object v) {
+        if (v == null) {
+            event.write(VAL_NULL);
+        } else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            event.write(VAL_INT);
+            writeVarLong(zigzag(((Number) v).longValue()));
+        } else if (v instanceof Number) {
+            event.write(VAL_DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) v).doubleValue());
+            for (int i = 0; i < 8; i++) event.write((int) (bits >>> (56 - 8 * i)));
+        } else if (v instanceof Boolean) {
+            event.write((Boolean) v ? VAL_TRUE : VAL_FALSE);
+        } else {
+            event.write(VAL_STRING);
+            writeString(v.toString());
+        }
+    }
+}
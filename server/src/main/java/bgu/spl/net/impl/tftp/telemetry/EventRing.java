@@ -0,0 +1,52 @@
+package bgu.spl.net.impl.tftp.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring for many producers and a single consumer.
+ * Producers claim a slot with one CAS and never block; when the ring is full
+ * {@link #offer} fails right away and the caller decides what to do.
+ */
+final class EventRing<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot a producer claims
+    private volatile long head = 0;                   // next slot the consumer reads; only it writes this
+
+    /** @param capacity rounded up to a power of two */
+    EventRing(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(cap);
+        this.mask = cap - 1;
+    }
+
+    boolean offer(E e) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) return false; // full
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.lazySet((int) t & mask, e);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest element, or null if there is none (or its producer hasn't published it yet)
+     */
+    E poll() {
+        long h = head;
+        int i = (int) h & mask;
+        E e = slots.get(i);
+        if (e == null) return null;
+        slots.lazySet(i, null);
+        head = h + 1;
+        return e;
+    }
+
+    int capacity() { return mask + 1; }
+
+    int size() { return (int) Math.max(0, tail.get() - head); }
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.impl.tftp.telemetry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/** one JSON object per line: {"ts":..,"event":"..","user":"..","file":"..",["msg":"..",] extras...} */
+final class JsonBatchEncoder implements BatchEncoder {
+
+    private final int maxBytes;
+    private final ByteArrayOutputStream batch;
+    private final StringBuilder sb = new StringBuilder(256);
+
+    JsonBatchEncoder(int maxBytes) {
+        this.maxBytes = maxBytes;
+        this.batch = new ByteArrayOutputStream(maxBytes);
+    }
+
+    @Override
+    public boolean add(long ts, String type, String user, String file, String msg, Map<String,Object> extra) {
+        byte[] b = makeEvent(ts, type, user, file, msg, extra).getBytes(StandardCharsets.UTF_8);
+        if (batch.size() > 0 && batch.size() + 1 + b.length > maxBytes) return false;
+        if (batch.size() > 0) batch.write('\n');
+        batch.write(b, 0, b.length);
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() { return batch.size() == 0; }
+
+    @Override
+    public byte[] finish() {
+        byte[] b = batch.toByteArray();
+        batch.reset();
+        return b;
+    }
+
+    /** a JSON string body; control characters too, a raw newline would split the event in two */
+    private static String esc(String s){
+        if (s == null) return "";
+        int i = 0;
+        while (i < s.length() && s.charAt(i) >= 0x20 && s.charAt(i) != '"' && s.charAt(i) != '\\') i++;
+        if (i == s.length()) return s;
+        StringBuilder out = new StringBuilder(s.length() + 16).append(s, 0, i);
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default:
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private String makeEvent(long ts, String type, String user, String file, String msg, Map<String,Object> extra) {
+        sb.setLength(0);
+        sb.append("{\"ts\":").append(ts)
+          .append(",\"event\":\"").append(esc(type)).append("\"")
+          .append(",\"user\":\"").append(esc(user)).append("\"")
+          .append(",\"file\":\"").append(esc(file)).append("\"");
+        if (msg != null) sb.append(",\"msg\":\"").append(esc(msg)).append("\"");
+        if (extra != null) {
+            for (var e : extra.entrySet()) {
+                sb.append(",\"").append(esc(e.getKey())).append("\":");
+                Object v = e.getValue();
+                if (v == null) sb.append("null");
+                else if (v instanceof Number || v instanceof Boolean) sb.append(v);
+                else sb.append("\"").append(esc(v.toString())).append("\"");
+            }
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+}
@@ -1,66 +1,163 @@
 package bgu.spl.net.impl.tftp.telemetry;
 
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Fire-and-forget telemetry over UDP.
+ * <p>
+ * {@link #log} only drops an event into a lock-free ring; a daemon thread drains it every
+ * {@code telemetry.flush-ms} and packs as many events as fit into one datagram: one JSON
+ * object per line, or with {@code telemetry.format=binary} the compact encoding described
+ * in {@link bgu.spl.net.telemetry.BinaryEventDecoder}. ACKs, by far the most frequent event,
+ * are merged per (user, file) into a single event with a {@code count} each flush, and can
+ * also be sampled at the source with {@code telemetry.ack-sample=N} (keep about one in N).
+ * When the ring is full events are dropped and counted rather than slowing down the caller.
+ */
 public class TelemetryClient {
     private final InetAddress host;
     private final int port;
     private final DatagramSocket socket;
 
+    private final EventRing<Event> ring;
+    private final String format;
+    private final int maxDatagram;
+    private final long flushNanos;
+    private final int ackSample;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+
+    /** what the caller handed us; turned into JSON on the sender thread */
+    private static final class Event {
+        final long ts;
+        final String type, user, file, msg;
+        final Map<String,Object> extra;
+        final int block;   // ACK only
+        final int weight;  // ACK only: how many ACKs this one stands for after sampling
+
+        Event(String type, String user, String file, String msg, Map<String,Object> extra, int block, int weight) {
+            this.ts = System.currentTimeMillis();
+            this.type = type; this.user = user; this.file = file; this.msg = msg; this.extra = extra;
+            this.block = block; this.weight = weight;
+        }
+    }
+
+    /** ACKs of one (user, file) seen during a flush */
+    private static final class AckAgg {
+        final String user, file;
+        long ts;
+        int block;
+        long count;
+        AckAgg(String user, String file) { this.user = user; this.file = file; }
+    }
+
     public TelemetryClient(String host, int port) {
+        this(host, port,
+                System.getProperty("telemetry.format", "json"),
+                Integer.getInteger("telemetry.buffer", 8192),
+                Integer.getInteger("telemetry.max-datagram", 8192),
+                Long.getLong("telemetry.flush-ms", 50),
+                Integer.getInteger("telemetry.ack-sample", 1));
+    }
+
+    public TelemetryClient(String host, int port, String format, int bufferEvents, int maxDatagram, long flushMs, int ackSample) {
         try {
             this.host = InetAddress.getByName(host);
             this.port = port;
             this.socket = new DatagramSocket();
         } catch (Exception e) { throw new RuntimeException(e); }
-    }
+        this.ring = new EventRing<>(bufferEvents);
+        this.format = format;
+        this.maxDatagram = Math.max(512, Math.min(maxDatagram, 65507));
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMs));
+        this.ackSample = Math.max(1, ackSample);
 
-    private void sendJson(String json) {
-        try {
-            byte[] b = json.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket p = new DatagramPacket(b, b.length, host, port);
-            socket.send(p);
-        } catch (Exception ignore) {}
+        Thread sender = new Thread(this::sendLoop, "telemetry-sender");
+        sender.setDaemon(true);
+        sender.start();
     }
 
-    private static String esc(String s){
-        if (s == null) return "";
-        return s.replace("\\","\\\\").replace("\"","\\\"");
+    private void enqueue(Event e) {
+        if (ring.offer(e)) enqueued.increment();
+        else dropped.increment();
     }
 
-    private String makeEvent(String type, String user, String file, String msg, Map<String,Object> extra) {
-        StringBuilder sb = new StringBuilder(256);
-        sb.append("{\"ts\":").append(Instant.now().toEpochMilli())
-          .append(",\"event\":\"").append(esc(type)).append("\"")
-          .append(",\"user\":\"").append(esc(user)).append("\"")
-          .append(",\"file\":\"").append(esc(file)).append("\"");
-        if (msg != null) sb.append(",\"msg\":\"").append(esc(msg)).append("\"");
-        if (extra != null) {
-            for (var e : extra.entrySet()) {
-                sb.append(",\"").append(esc(e.getKey())).append("\":");
-                Object v = e.getValue();
-                if (v == null) sb.append("null");
-                else if (v instanceof Number || v instanceof Boolean) sb.append(v);
-                else sb.append("\"").append(esc(v.toString())).append("\"");
+    // -------- sender thread --------
+    private void sendLoop() {
+        BatchEncoder batch = BatchEncoder.forFormat(format, maxDatagram);
+        Map<String, AckAgg> acks = new LinkedHashMap<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            Event e;
+            while ((e = ring.poll()) != null) {
+                if (e.weight > 0) {
+                    final Event ack = e;
+                    AckAgg agg = acks.computeIfAbsent(ack.user + '\0' + ack.file, k -> new AckAgg(ack.user, ack.file));
+                    agg.ts = ack.ts;       // the ring is in arrival order, so the last one wins
+                    agg.block = ack.block;
+                    agg.count += ack.weight;
+                } else {
+                    append(batch, e.ts, e.type, e.user, e.file, e.msg, e.extra);
+                }
+            }
+            for (AckAgg agg : acks.values()) {
+                Map<String,Object> extra = Map.of("block", agg.block, "count", agg.count);
+                append(batch, agg.ts, "ACK", agg.user, agg.file, null, extra);
             }
+            acks.clear();
+            flush(batch);
+            LockSupport.parkNanos(flushNanos);
+        }
+    }
+
+    /** adds an event to the datagram being built, sending that first if the event doesn't fit */
+    private void append(BatchEncoder batch, long ts, String type, String user, String file, String msg, Map<String,Object> extra) {
+        if (!batch.add(ts, type, user, file, msg, extra)) {
+            flush(batch);
+            batch.add(ts, type, user, file, msg, extra); // an empty batch takes anything
+        }
+    }
+
+    private void flush(BatchEncoder batch) {
+        if (batch.isEmpty()) return;
+        try {
+            byte[] b = batch.finish();
+            socket.send(new DatagramPacket(b, b.length, host, port));
+            datagrams.increment();
+        } catch (Exception ignore) {
+            sendErrors.increment();
         }
-        sb.append("}");
-        return sb.toString();
     }
 
     public void log(String type, String user, String file, String msg, Map<String,Object> extra) {
-        sendJson(makeEvent(type, user, file, msg, extra));
+        enqueue(new Event(type, user, file, msg, extra, 0, 0));
     }
 
     // convenience
     public void wrqComplete(String user, String file, long size){ log("FILE_ADD", user, file, "WRQ complete", Map.of("size",size)); }
     public void delComplete(String user, String file){ log("FILE_DELETE", user, file, "DELRQ complete", null); }
     public void rrqComplete(String user, String file){ log("FILE_ACCESS", user, file, "RRQ complete", null); }
-    public void ack(String user, String file, int block){ log("ACK", user, file, null, Map.of("block",block)); }
+    public void ack(String user, String file, int block){
+        if (ackSample > 1 && ThreadLocalRandom.current().nextInt(ackSample) != 0) { sampledOut.increment(); return; }
+        enqueue(new Event("ACK", user, file, null, null, block, ackSample));
+    }
     public void error(String user, String file, int code, String emsg){ log("ERROR", user, file, emsg, Map.of("code",code)); }
     public void bcastAdd(String file){ log("BCAST_ADD", "", file, null, null); }
     public void bcastDel(String file){ log("BCAST_DEL", "", file, null, null); }
+
+    // -------- counters --------
+    public long enqueuedCount() { return enqueued.sum(); }
+    public long droppedCount() { return dropped.sum(); }
+    public long sampledOutCount() { return sampledOut.sum(); }
+    public long datagramCount() { return datagrams.sum(); }
+    public long sendErrorCount() { return sendErrors.sum(); }
+    public int queuedCount() { return ring.size(); }
 }
@@ -0,0 +1,92 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed pool of worker threads that runs the tasks of the same "actor"
+ * (e.g. a connection handler) one at a time and in submission order, while
+ * tasks of different actors run in parallel.
+ */
+public class ActorThreadPool {
+
+    private final Map<Object, Queue<Runnable>> acts;
+    private final ReadWriteLock actsRWLock;
+    private final Set<Object> playingNow;
+    private final ExecutorService threads;
+
+    public ActorThreadPool(int threads) {
+        this.threads = Executors.newFixedThreadPool(threads);
+        acts = new WeakHashMap<>();
+        playingNow = ConcurrentHashMap.newKeySet();
+        actsRWLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * submits a task to the pool
+     *
+     * @param act the actor the task belongs to
+     * @param r   the task to run
+     */
+    public void submit(Object act, Runnable r) {
+        synchronized (act) {
+            if (!playingNow.contains(act)) {
+                playingNow.add(act);
+                execute(r, act);
+            } else {
+                pendingRunnablesOf(act).add(r);
+            }
+        }
+    }
+
+    /**
+     * closes the thread pool - this method interrupts all the threads and waits
+     * for them to stop
+     */
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    private Queue<Runnable> pendingRunnablesOf(Object act) {
+        actsRWLock.readLock().lock();
+        Queue<Runnable> pendingRunnables = acts.get(act);
+        actsRWLock.readLock().unlock();
+
+        if (pendingRunnables == null) {
+            actsRWLock.writeLock().lock();
+            acts.put(act, pendingRunnables = new LinkedList<>());
+            actsRWLock.writeLock().unlock();
+        }
+        return pendingRunnables;
+    }
+
+    private void execute(Runnable r, Object act) {
+        threads.execute(() -> {
+            try {
+                r.run();
+            } finally {
+                complete(act);
+            }
+        });
+    }
+
+    private void complete(Object act) {
+        synchronized (act) {
+            Queue<Runnable> pending = pendingRunnablesOf(act);
+            if (pending.isEmpty()) {
+                playingNow.remove(act);
+            } else {
+                execute(pending.poll(), act);
+            }
+        }
+    }
+
+}
@@ -4,8 +4,10 @@ import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -33,14 +35,17 @@ public abstract class BaseServer<T> implements Server<T> {
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
+        // opened as a channel so client sockets get one too, which lets file downloads use transferTo
+        try (ServerSocketChannel serverChan = ServerSocketChannel.open()) {
+            serverChan.bind(new InetSocketAddress(port));
             System.out.println("Server started");
 
-            this.sock = serverSock; //just to be able to close
+            this.sock = serverChan.socket(); //just to be able to close
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                Socket clientSock = serverSock.accept();
+                Socket clientSock = serverChan.accept().socket();
+                clientSock.setTcpNoDelay(true); // every send is a whole frame; don't hold back windowed DATA
 
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
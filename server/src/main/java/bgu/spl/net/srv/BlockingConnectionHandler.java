@@ -3,19 +3,37 @@ package bgu.spl.net.srv;
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+    // closes connections whose offer() write outlived its deadline, which is what unblocks it
+    private static final ScheduledThreadPoolExecutor WRITE_DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "write-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+    static { WRITE_DEADLINES.setRemoveOnCancelPolicy(true); } // nearly every deadline is cancelled
 
     private final BidiMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    // send() may be called from other clients' threads (e.g. BCAST); a ReentrantLock rather than
+    // synchronized keeps a virtual thread from pinning its carrier while it blocks on the socket
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private InputStream in;
+    private volatile OutputStream out;
     private volatile boolean connected = true;
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, BidiMessagingProtocol<T> protocol) {
@@ -34,19 +52,25 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            ByteBuffer chunk = ByteBuffer.wrap(buf);
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream();
+            out = sock.getOutputStream();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            while (!protocol.shouldTerminate() && connected && (read = in.read(buf)) >= 0) {
+                chunk.clear();
+                chunk.limit(read);
+                for (T nextMessage : encdec.decode(chunk)) {
+                    if (protocol.shouldTerminate() || !connected) break;
                     protocol.process(nextMessage);
                 }
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            protocol.connectionClosed();
         }
 
     }
@@ -59,14 +83,86 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void send(T msg) {
-        try{
-            if(msg!=null){
-                out.write(encdec.encode(msg));
-                out.flush();
-            }
-        }catch (IOException ex){
-            ex.printStackTrace();
+        if (msg == null || out == null) return;
+        // every frame goes out in a single write, so no extra buffering layer is needed
+        byte[] bytes = encdec.encode(msg);
+        writeLock.lock();
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException ex) {
+            writeFailed(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits at most {@code timeoutMs} for this client's own replies to be written, then gives
+     * the write itself the same time; a client that doesn't take it by then is disconnected,
+     * as the frame may be half written. Nothing is queued here, so {@code maxQueuedBytes}
+     * doesn't apply: the socket's buffer is the queue.
+     */
+    @Override
+    public boolean offer(T msg, long maxQueuedBytes, long timeoutMs) {
+        OutputStream out = this.out;
+        if (msg == null || out == null || !connected) return false;
+        byte[] bytes = encdec.encode(msg);
+        try {
+            if (!writeLock.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+        // the deadline starts with the lock held: waiting behind a long RRQ isn't stalling
+        ScheduledFuture<?> deadline = WRITE_DEADLINES.schedule(this::closeQuietly, timeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            out.write(bytes);
+            out.flush();
+            return true;
+        } catch (IOException ex) {
+            writeFailed(ex);
+            return false;
+        } finally {
+            deadline.cancel(false);
+            writeLock.unlock();
+        }
+    }
 
+    @Override
+    public void sendFrame(Frame frame) {
+        OutputStream out = this.out;
+        if (out == null) {
+            frame.release();
+            return;
+        }
+        // sockets accepted through a ServerSocketChannel have a channel, so transferTo can use sendfile
+        WritableByteChannel target = (sock.getChannel() != null) ? sock.getChannel() : Channels.newChannel(out);
+        writeLock.lock();
+        try {
+            frame.writeFully(target);
+        } catch (IOException ex) {
+            writeFailed(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Part of a frame may already be on the wire, and anything sent after it would be read as
+     * the rest of it, so the connection can't be used any more. Closing the socket also ends
+     * the read loop, which reports the connection closed to the protocol.
+     */
+    private void writeFailed(IOException ex) {
+        if (!connected) return; // closed on purpose; the write failing is expected
+        ex.printStackTrace();
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
     }
 }
@@ -19,4 +19,23 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a frame built in place (and its file slice, if any) as is, without any other
+     * message in between. The frame is released once written, or right away if the
+     * connection is already closed.
+     */
+    void sendFrame(Frame frame);
+
+    /**
+     * Sends a message that may be dropped (a notification) unless the connection is backed up:
+     * more than {@code maxQueuedBytes} already waiting to be written, or not taken within
+     * {@code timeoutMs}. A handler that writes in the caller's thread bounds the wait with the
+     * timeout; one that queues bounds its queue with the byte count.
+     * @return false if the message was not sent
+     */
+    default boolean offer(T msg, long maxQueuedBytes, long timeoutMs) {
+        send(msg);
+        return true;
+    }
+
 }
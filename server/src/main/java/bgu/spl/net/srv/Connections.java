@@ -8,5 +8,15 @@ public interface Connections<T> {
 
     boolean send(int connectionId, T msg);
 
+    boolean sendFrame(int connectionId, Frame frame);
+
+    /**
+     * {@link ConnectionHandler#offer}: a message that is dropped if the connection is backed up.
+     * @return false if it was dropped, or the connection is gone
+     */
+    default boolean offer(int connectionId, T msg, long maxQueuedBytes, long timeoutMs) {
+        return send(connectionId, msg);
+    }
+
     void disconnect(int connectionId);
 }
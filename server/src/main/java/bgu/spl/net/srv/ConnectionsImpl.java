@@ -12,14 +12,37 @@ public class ConnectionsImpl<T> implements Connections<T> {
     }
 
     public boolean send(int connectionId, T msg) {
-        connectionHandlers.get(connectionId).send(msg);
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        if (handler == null) return false; // disconnected meanwhile
+        handler.send(msg);
         return true;
     }
 
+    @Override
+    public boolean offer(int connectionId, T msg, long maxQueuedBytes, long timeoutMs) {
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        return handler != null && handler.offer(msg, maxQueuedBytes, timeoutMs);
+    }
+
+    public boolean sendFrame(int connectionId, Frame frame) {
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        if (handler == null) {
+            frame.release();
+            return false;
+        }
+        handler.sendFrame(frame);
+        return true;
+    }
+
+    /** @return the number of connections currently open */
+    public int size() {
+        return connectionHandlers.size();
+    }
+
     public void disconnect(int connectionId) {
         try {
             ConnectionHandler<T> handler = connectionHandlers.remove(connectionId);
-            handler.close();
+            if (handler != null) handler.close();
         } catch (IOException e) {
         }
 
@@ -0,0 +1,119 @@
+package bgu.spl.net.srv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An outgoing frame built in place: the bytes put into {@link #buffer()}, optionally followed
+ * by a slice of a file sent with {@link FileChannel#transferTo}, so file data never passes
+ * through the java heap.
+ * <p>
+ * Frames usually come from a {@link FramePool}: lease one, fill it, and hand it to
+ * {@link Connections#sendFrame}. From then on it belongs to the connection handler, which
+ * releases it back to its pool once written, or when the connection goes away.
+ * A file slice does not move the channel's own position, so several slices of the same
+ * file may be queued at once.
+ */
+public final class Frame {
+
+    private final FramePool pool; // null for a one-off frame
+    private final ByteBuffer buf;
+    private FileChannel file;
+    private long position;
+    private long end;
+    private boolean closeFile;
+
+    Frame(FramePool pool, int capacity) {
+        this.pool = pool;
+        this.buf = ByteBuffer.allocate(capacity);
+    }
+
+    /** a frame that is not pooled, for the odd message bigger than the pool's frames */
+    public static Frame allocate(int capacity) {
+        return new Frame(null, capacity);
+    }
+
+    /** the frame's bytes; put them in from position 0 and leave the position at their end */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code file} from {@code position} right after the frame's bytes.
+     * @param closeFile whether to close {@code file} once this frame was written or dropped
+     * @return this frame
+     */
+    public Frame attach(FileChannel file, long position, long count, boolean closeFile) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+        this.closeFile = closeFile;
+        return this;
+    }
+
+    /** called by the handler when the frame is handed over, before anything is written */
+    void ready() {
+        buf.flip();
+    }
+
+    /**
+     * Writes as much of the frame as the target accepts.
+     * @return true once everything was written
+     */
+    boolean writeTo(WritableByteChannel target) throws IOException {
+        if (buf.hasRemaining()) {
+            target.write(buf);
+            if (buf.hasRemaining()) return false;
+        }
+        while (file != null && position < end) {
+            long n = file.transferTo(position, end - position, target);
+            if (n <= 0) {
+                // the bytes already announced the size, so a shrunk file can't be papered over
+                if (position >= file.size()) throw new EOFException("file shrank while being sent");
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    /** bytes not written yet, file slice included; valid once {@link #ready()} was called */
+    long remaining() {
+        return buf.remaining() + (file == null ? 0 : end - position);
+    }
+
+    /**
+     * Writes the whole frame to a channel that takes everything it is given (a blocking socket,
+     * a file, a counting sink) and releases it, as {@link Connections#sendFrame} does for a
+     * blocking connection. The frame can't be used afterwards.
+     * @throws IOException if the write fails or the channel stops short; part of the frame may
+     *         have been written
+     */
+    public void writeFully(WritableByteChannel target) throws IOException {
+        ready();
+        try {
+            if (!writeTo(target)) throw new IOException("short write on a blocking channel");
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Called exactly once, after the frame was written or when it is dropped.
+     */
+    void release() {
+        if (file != null && closeFile) {
+            try {
+                file.close();
+            } catch (IOException ignore) {
+            }
+        }
+        file = null;
+        closeFile = false;
+        buf.clear();
+        if (pool != null) pool.recycle(this);
+    }
+}
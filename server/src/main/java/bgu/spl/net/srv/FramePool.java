@@ -0,0 +1,41 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable {@link Frame}s of one size, meant to be owned by one connection.
+ * Frames are leased by whoever builds them and come back from the thread that wrote them,
+ * so the free list is an {@link ArrayBlockingQueue}: thread safe, and unlike a linked queue
+ * it allocates nothing on the way in or out. Up to {@code maxIdle} frames are kept; a pool
+ * that runs dry makes new ones.
+ */
+public final class FramePool {
+
+    private final int frameSize;
+    private final BlockingQueue<Frame> idle;
+
+    public FramePool(int frameSize, int maxIdle) {
+        this.frameSize = frameSize;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+    }
+
+    /** @return an empty frame of {@link #frameSize()} bytes */
+    public Frame lease() {
+        Frame f = idle.poll();
+        return (f != null) ? f : new Frame(this, frameSize);
+    }
+
+    /** @return an empty frame of at least {@code capacity} bytes, pooled if it is not too big */
+    public Frame lease(int capacity) {
+        return (capacity <= frameSize) ? lease() : Frame.allocate(capacity);
+    }
+
+    void recycle(Frame f) {
+        idle.offer(f); // dropped if the pool is full
+    }
+
+    public int frameSize() { return frameSize; }
+
+    public int idleCount() { return idle.size(); }
+}
@@ -0,0 +1,203 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    private final BidiMessagingProtocol<T> protocol;
+    private final MessageEncoderDecoder<T> encdec;
+    private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>(); // ByteBuffer or Frame
+    private final AtomicLong queuedBytes = new AtomicLong(); // in writeQueue, not written yet
+    private final SocketChannel chan;
+    private final Reactor<T> reactor;
+    private volatile boolean closeRequested = false;
+    private final AtomicBoolean closedNotified = new AtomicBoolean(false);
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            BidiMessagingProtocol<T> protocol,
+            SocketChannel chan,
+            Reactor<T> reactor) {
+        this.chan = chan;
+        this.encdec = reader;
+        this.protocol = protocol;
+        this.reactor = reactor;
+    }
+
+    public BidiMessagingProtocol<T> getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Called by the selector thread when the channel is readable.
+     * @return a task that decodes and processes what was read, to be run on the worker pool,
+     * or null if the connection was closed by the peer
+     */
+    public Runnable continueRead() {
+        ByteBuffer buf = leaseBuffer();
+
+        boolean success = false;
+        try {
+            success = chan.read(buf) != -1;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        if (success) {
+            buf.flip();
+            return () -> {
+                try {
+                    for (T nextMessage : encdec.decode(buf)) {
+                        if (protocol.shouldTerminate()) break;
+                        protocol.process(nextMessage);
+                    }
+                } finally {
+                    releaseBuffer(buf);
+                }
+            };
+        } else {
+            releaseBuffer(buf);
+            forceClose();
+            return null;
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel is writable.
+     */
+    public void continueWrite() {
+        while (!writeQueue.isEmpty()) {
+            try {
+                Object top = writeQueue.peek();
+                if (top instanceof Frame) {
+                    Frame frame = (Frame) top;
+                    long before = frame.remaining();
+                    boolean done = frame.writeTo(chan);
+                    queuedBytes.addAndGet(frame.remaining() - before);
+                    if (!done) return;
+                    frame.release();
+                } else {
+                    ByteBuffer buf = (ByteBuffer) top;
+                    queuedBytes.addAndGet(-chan.write(buf));
+                    if (buf.hasRemaining()) return;
+                }
+                writeQueue.remove();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                forceClose();
+                return;
+            }
+        }
+
+        if (writeQueue.isEmpty()) {
+            if (closeRequested || protocol.shouldTerminate()) forceClose();
+            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        }
+    }
+
+    public boolean isClosed() {
+        return !chan.isOpen();
+    }
+
+    /**
+     * Closes the connection once everything already queued by {@link #send} was written,
+     * so a final reply (e.g. the ACK to DISC) still reaches the client.
+     */
+    @Override
+    public void close() {
+        closeRequested = true;
+        if (writeQueue.isEmpty()) forceClose();
+        else reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void forceClose() {
+        try {
+            chan.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        releasePendingFrames();
+        if (closedNotified.compareAndSet(false, true)) reactor.submit(this, protocol::connectionClosed);
+    }
+
+    private void releasePendingFrames() {
+        Object pending;
+        while ((pending = writeQueue.poll()) != null) {
+            if (pending instanceof Frame) {
+                queuedBytes.addAndGet(-((Frame) pending).remaining());
+                ((Frame) pending).release();
+            } else {
+                queuedBytes.addAndGet(-((ByteBuffer) pending).remaining());
+            }
+        }
+    }
+
+    /** bytes queued by {@link #send}/{@link #sendFrame} that the client hasn't taken yet */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public void send(T msg) {
+        if (msg != null && !isClosed()) {
+            enqueue(ByteBuffer.wrap(encdec.encode(msg)));
+        }
+    }
+
+    /** nothing is written in the caller's thread, so only the queue's size can say it's backed up */
+    @Override
+    public boolean offer(T msg, long maxQueuedBytes, long timeoutMs) {
+        if (msg == null || isClosed()) return false;
+        ByteBuffer buf = ByteBuffer.wrap(encdec.encode(msg));
+        if (queuedBytes.get() + buf.remaining() > maxQueuedBytes) return false;
+        enqueue(buf);
+        return true;
+    }
+
+    private void enqueue(ByteBuffer buf) {
+        queuedBytes.addAndGet(buf.remaining());
+        writeQueue.add(buf);
+        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (isClosed()) {
+            frame.release();
+            return;
+        }
+        frame.ready();
+        queuedBytes.addAndGet(frame.remaining());
+        writeQueue.add(frame); // one entry, so nothing sent concurrently can land between its bytes and its file data
+        if (isClosed()) releasePendingFrames(); // lost a race with forceClose
+        else reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private static ByteBuffer leaseBuffer() {
+        ByteBuffer buff = BUFFER_POOL.poll();
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        }
+
+        buff.clear();
+        return buff;
+    }
+
+    private static void releaseBuffer(ByteBuffer buff) {
+        BUFFER_POOL.add(buff);
+    }
+
+}
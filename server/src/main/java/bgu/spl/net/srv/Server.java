@@ -35,5 +35,44 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     *This function returns a new instance of a thread per client server that runs every
+     * client on a virtual thread (Java 21+), falling back to small-stack platform threads on older JVMs
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                VirtualThreads.start(handler);
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param nthreads Number of threads available for protocol processing
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
+    }
 
 }
@@ -0,0 +1,40 @@
+package bgu.spl.net.srv;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Starts tasks on virtual threads when the running JVM has them (Java 21+).
+ * The module still compiles for older releases, so the factory is looked up at runtime;
+ * on older JVMs we fall back to platform threads with a small stack.
+ */
+final class VirtualThreads {
+
+    private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+    private static final MethodHandle START_VIRTUAL = lookup();
+
+    private VirtualThreads() {}
+
+    private static MethodHandle lookup() {
+        try {
+            return MethodHandles.publicLookup().findStatic(
+                    Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    static void start(Runnable task) {
+        if (START_VIRTUAL != null) {
+            try {
+                START_VIRTUAL.invoke(task);
+                return;
+            } catch (Throwable ex) {
+                throw new IllegalStateException("cannot start virtual thread", ex);
+            }
+        }
+        Thread t = new Thread(null, task, "client-handler", FALLBACK_STACK_SIZE);
+        t.start();
+    }
+}
@@ -0,0 +1,146 @@
+package bgu.spl.net.telemetry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the compact binary telemetry format ({@code -Dtelemetry.format=binary}).
+ * It has a module of its own so the TFTP server, which writes the format, and the REST
+ * server, which reads it, compile against the same constants.
+ *
+ * <pre>
+ * datagram := 'T' 'M' version(1) flags(0) baseTs(int64, ms) count(uint16) event*
+ * event    := code(u8) [type:str if code == 0] tsDelta(zigzag varint, ms from baseTs)
+ *             user:str file:str msg:str nExtra(varint) (key:str value)*
+ * str      := varint v;  0 = null,  odd = string #(v >>> 1) of this datagram,
+ *             even = new string of (v >>> 1) - 1 UTF-8 bytes that follow, numbered from 0
+ * value    := 0 null | 1 zigzag varint | 2 false | 3 true | 4 str | 5 double(8 bytes)
+ * </pre>
+ * All multi-byte fixed fields are big endian. Event codes are the indexes of {@link #EVENT_TYPES}.
+ */
+public final class BinaryEventDecoder {
+
+    public static final byte MAGIC_0 = 'T', MAGIC_1 = 'M', VERSION = 1;
+    public static final int HEADER_SIZE = 14;
+    public static final int CUSTOM = 0;
+    public static final int VAL_NULL = 0, VAL_INT = 1, VAL_FALSE = 2, VAL_TRUE = 3, VAL_STRING = 4, VAL_DOUBLE = 5;
+
+    /** index = event code; 0 means the type is sent as a string */
+    public static final List<String> EVENT_TYPES = Collections.unmodifiableList(Arrays.asList(
+            null, "LOGIN", "DISC", "ACK", "FILE_ADD", "FILE_DELETE", "FILE_ACCESS", "ERROR", "BCAST_ADD", "BCAST_DEL"));
+
+    private final byte[] in;
+    private final int end;
+    private int pos;
+    private final List<String> strings = new ArrayList<>();
+
+    private BinaryEventDecoder(byte[] in, int off, int len) {
+        this.in = in;
+        this.pos = off;
+        this.end = off + len;
+    }
+
+    /** @return true if the payload starts like a binary batch (JSON batches start with '{') */
+    public static boolean isBinary(byte[] data, int off, int len) {
+        return len >= HEADER_SIZE && data[off] == MAGIC_0 && data[off + 1] == MAGIC_1;
+    }
+
+    /**
+     * @return the events of one datagram, each as an ordered map shaped like the JSON
+     * format: ts, event, user, file, [msg,] then the extra fields
+     * @throws IllegalArgumentException if the payload is not a valid batch
+     */
+    public static List<Map<String,Object>> decode(byte[] data, int off, int len) {
+        if (!isBinary(data, off, len)) throw new IllegalArgumentException("not a binary telemetry batch");
+        if (data[off + 2] != VERSION) throw new IllegalArgumentException("unsupported version " + data[off + 2]);
+        return new BinaryEventDecoder(data, off, len).events();
+    }
+
+    private List<Map<String,Object>> events() {
+        pos += 4;
+        long baseTs = 0;
+        for (int i = 0; i < 8; i++) baseTs = (baseTs << 8) | u8();
+        int count = (u8() << 8) | u8();
+
+        List<Map<String,Object>> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int code = u8();
+            String type;
+            if (code == CUSTOM) type = str();
+            else if (code < EVENT_TYPES.size()) type = EVENT_TYPES.get(code);
+            else throw new IllegalArgumentException("unknown event code " + code);
+
+            Map<String,Object> e = new LinkedHashMap<>();
+            e.put("ts", baseTs + unzigzag(varLong()));
+            e.put("event", type);
+            e.put("user", orEmpty(str()));
+            e.put("file", orEmpty(str()));
+            String msg = str();
+            if (msg != null) e.put("msg", msg);
+            long n = varLong();
+            for (long k = 0; k < n; k++) {
+                String key = str();
+                e.put(key, value());
+            }
+            out.add(e);
+        }
+        return out;
+    }
+
+    private static String orEmpty(String s) { return s == null ? "" : s; } // as the JSON format writes them
+
+    private Object value() {
+        int tag = u8();
+        switch (tag) {
+            case VAL_NULL: return null;
+            case VAL_INT: return unzigzag(varLong());
+            case VAL_FALSE: return Boolean.FALSE;
+            case VAL_TRUE: return Boolean.TRUE;
+            case VAL_STRING: return str();
+            case VAL_DOUBLE: {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) bits = (bits << 8) | u8();
+                return Double.longBitsToDouble(bits);
+            }
+            default: throw new IllegalArgumentException("unknown value tag " + tag);
+        }
+    }
+
+    private String str() {
+        long v = varLong();
+        if (v == 0) return null;
+        if ((v & 1) == 1) {
+            long id = v >>> 1;
+            if (id >= strings.size()) throw new IllegalArgumentException("unknown string #" + id);
+            return strings.get((int) id);
+        }
+        long len = (v >>> 1) - 1;
+        if (len > end - pos) throw new IllegalArgumentException("truncated string");
+        String s = new String(in, pos, (int) len, StandardCharsets.UTF_8);
+        pos += (int) len;
+        strings.add(s);
+        return s;
+    }
+
+    private long varLong() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = u8();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private int u8() {
+        if (pos >= end) throw new IllegalArgumentException("truncated batch");
+        return in[pos++] & 0xff;
+    }
+}